@@ -0,0 +1,23 @@
+package net.vpg.apex;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class ApexBenchmarks {
+    // same as org.openjdk.jmh.Main, but results default to JSON so that runs can be diffed between releases
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        new Runner(new OptionsBuilder()
+            .parent(options)
+            .resultFormat(options.getResultFormat().orElse(ResultFormatType.JSON))
+            .result(options.getResult().orElse("jmh-result.json"))
+            .build())
+            .run();
+    }
+}
@@ -0,0 +1,39 @@
+package net.vpg.apex;
+
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class Fixtures {
+    private static final String[] candidates = {System.getProperty("apex.bgm", ""), "bgm", "../bgm"};
+
+    public static File bgmDir() {
+        return Arrays.stream(candidates)
+            .filter(path -> !path.isEmpty())
+            .map(File::new)
+            .filter(File::isDirectory)
+            .findFirst()
+            .orElseThrow(() -> new IllegalStateException("Unable to locate the bgm fixtures, run from the repository root or pass -Dapex.bgm=<dir>"));
+    }
+
+    public static File track(String name) {
+        File file = new File(bgmDir(), name);
+        if (!file.isFile()) {
+            throw new IllegalStateException("Missing fixture " + file);
+        }
+        return file;
+    }
+
+    public static List<File> tracks() {
+        return Arrays.stream(bgmDir().listFiles())
+            .filter(file -> file.getName().endsWith(".ogg"))
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    public static byte[] decode(File file) throws Exception {
+        return Util.cache(AudioSystem.getAudioInputStream(Apex.AUDIO_FORMAT, AudioSystem.getAudioInputStream(file)));
+    }
+}
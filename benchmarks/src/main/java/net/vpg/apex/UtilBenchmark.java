@@ -0,0 +1,32 @@
+package net.vpg.apex;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    @Param({"150", "10000"})
+    public int size;
+    private List<Integer> list;
+
+    @Setup
+    public void setup() {
+        list = IntStream.range(0, size).boxed().collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @Benchmark
+    public List<Integer> shuffle() {
+        Util.shuffle(list);
+        return list;
+    }
+}
@@ -0,0 +1,56 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import net.vpg.apex.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClipBenchmark {
+    @Param({"bgm_battle01.ogg"})
+    public String file;
+    @Param({"0", "3"})
+    public int loops;
+    @Param({"1", "4"})
+    public int voices;
+    private byte[] pcm;
+    private int[] loopPoints;
+    private NullSourceDataLine line;
+    private ApexMixer mixer;
+    private ApexClip[] clips;
+
+    @Setup(Level.Trial)
+    public void decode() throws Exception {
+        File track = Fixtures.track(file);
+        pcm = Fixtures.decode(track);
+        loopPoints = Track.readLoopPoints(track);
+        line = new NullSourceDataLine();
+        mixer = new ApexMixer(line);
+        clips = new ApexClip[voices];
+        for (int i = 0; i < voices; i++) {
+            clips[i] = new ApexClip(mixer);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void open() {
+        for (ApexClip clip : clips) {
+            clip.open(Apex.AUDIO_FORMAT, pcm, 0, pcm.length);
+            clip.setLoopPoints(loopPoints[0], loopPoints[1]);
+            clip.loop(loops);
+        }
+    }
+
+    @Benchmark
+    public long playAudio() {
+        mixer.playBlocking(clips);
+        return line.written;
+    }
+}
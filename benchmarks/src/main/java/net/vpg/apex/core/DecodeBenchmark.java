@@ -0,0 +1,63 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import net.vpg.apex.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"bgm_battle01.ogg", "bgm_battle_higana.ogg"})
+    public String file;
+    private File track;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        track = Fixtures.track(file);
+        buffer = new byte[Apex.AUDIO_FORMAT.getFrameSize() * 48000];
+    }
+
+    @Benchmark
+    public long decodeSpi() throws Exception {
+        try (AudioInputStream stream = AudioSystem.getAudioInputStream(Apex.AUDIO_FORMAT, AudioSystem.getAudioInputStream(track))) {
+            long total = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    @Benchmark
+    public long decodeDirect() throws Exception {
+        try (VorbisDecoder decoder = new VorbisDecoder(track)) {
+            long total = 0;
+            int read;
+            while ((read = decoder.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    // the playback path: decoded a second at a time into the clip buffer while the mixer renders it
+    @Benchmark
+    public int decodeIntoClip() throws Exception {
+        ApexMixer mixer = new ApexMixer(new NullSourceDataLine());
+        ApexClip clip = new ApexClip(mixer);
+        clip.open(Codecs.get().open(track, Apex.AUDIO_FORMAT));
+        mixer.playBlocking(clip);
+        return clip.getFrameLength();
+    }
+}
@@ -0,0 +1,135 @@
+package net.vpg.apex.core;
+
+import javax.sound.sampled.*;
+
+class NullSourceDataLine implements SourceDataLine {
+    private AudioFormat format;
+    private int bufferSize;
+    private boolean open;
+    private boolean active;
+    long written;
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.bufferSize = bufferSize;
+        open = true;
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open(format, (int) (format.getFrameRate() * format.getFrameSize() / 10));
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public int write(byte[] b, int off, int len) {
+        written += len;
+        return len;
+    }
+
+    @Override
+    public void drain() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void start() {
+        active = true;
+    }
+
+    @Override
+    public void stop() {
+        active = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return active;
+    }
+
+    @Override
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public int available() {
+        return bufferSize;
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) getLongFramePosition();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return format == null ? 0 : written / format.getFrameSize();
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return format == null ? 0 : (long) (getLongFramePosition() * 1000000.0 / format.getFrameRate());
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(SourceDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("Unsupported control type: " + control);
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
@@ -0,0 +1,46 @@
+package net.vpg.apex.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlaylistBenchmark {
+    @Param({"10000"})
+    public int size;
+    // an id match near the end, a name-only match and a miss that scans everything twice
+    @Param({"bgm_synthetic_09990", "synthetic pair 5000", "does not exist"})
+    public String query;
+    private Playlist playlist;
+
+    @Setup
+    public void setup() {
+        playlist = new Playlist(new Playlist.Listener() {
+            @Override
+            public void inserted(int index, Track track) {
+            }
+
+            @Override
+            public void removed(int index, Track track) {
+            }
+
+            @Override
+            public void reordered() {
+            }
+        });
+        TrackTable table = TrackTable.get();
+        for (int i = 0; i < size; i++) {
+            playlist.insert(table.view(table.add(String.format("bgm_synthetic_%05d", i), "Battle! Synthetic Pair " + i)));
+        }
+    }
+
+    @Benchmark
+    public int search() {
+        return playlist.find(query, 0, playlist.size());
+    }
+}
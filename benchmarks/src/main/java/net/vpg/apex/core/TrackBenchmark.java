@@ -0,0 +1,29 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackBenchmark {
+    @Param({"bgm_battle01.ogg", "bgm_battle_higana.ogg"})
+    public String file;
+    private File track;
+
+    @Setup
+    public void setup() {
+        track = Fixtures.track(file);
+    }
+
+    @Benchmark
+    public int[] readLoopPoints() {
+        return Track.readLoopPoints(track);
+    }
+}
@@ -0,0 +1,10 @@
+@echo off
+rem Starts PM APEX from the release layout (bin\, lib\). On JDK 19+ the first start writes the classes it loaded to
+rem lib\pm-apex.jsa and every later start maps them from there instead of loading and verifying them again.
+rem The archive is rewritten by itself after a JDK update, older JDKs ignore the options and start as before.
+setlocal
+set APP_HOME=%~dp0..
+set JAVA=javaw
+if defined JAVA_HOME set JAVA=%JAVA_HOME%\bin\javaw
+for %%f in ("%APP_HOME%\lib\pm-apex*.jar") do set JAR=%%f
+start "" "%JAVA%" -XX:+IgnoreUnrecognizedVMOptions -XX:+AutoCreateSharedArchive "-XX:SharedArchiveFile=%APP_HOME%\lib\pm-apex.jsa" %JAVA_OPTS% -jar "%JAR%" %*
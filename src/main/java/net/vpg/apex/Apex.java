@@ -3,91 +3,299 @@ package net.vpg.apex;
 import net.vpg.apex.components.ApexControl;
 import net.vpg.apex.components.ApexWindow;
 import net.vpg.apex.core.ApexClip;
-import net.vpg.apex.core.ApexThreadFactory;
+import net.vpg.apex.core.ApexExecutors;
+import net.vpg.apex.core.DownloadScheduler;
+import net.vpg.apex.core.LoopDetector;
+import net.vpg.apex.core.LoudnessAnalyzer;
+import net.vpg.apex.core.OnlineTrack;
+import net.vpg.apex.core.PlayQueue;
+import net.vpg.apex.core.PlaybackMetrics;
+import net.vpg.apex.core.Playlist;
 import net.vpg.apex.core.Resources;
+import net.vpg.apex.core.SessionStore;
+import net.vpg.apex.core.StartupLog;
+import net.vpg.apex.core.StreamingSource;
 import net.vpg.apex.core.Track;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.Clip;
+import javax.sound.sampled.LineEvent;
 import javax.swing.*;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class Apex {
-    public static final Apex APEX = new Apex();
     public static final Logger LOGGER = LoggerFactory.getLogger(Apex.class);
     public static final AudioFormat AUDIO_FORMAT = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 48000, 16, 2, 4, 48000, false);
+    // set by the appcds build profile: start, play the first track for a few seconds and exit
+    public static final boolean TRAINING = Boolean.getBoolean("apex.training");
+    // select the first track on launch without opening it, the line and the decoder are warmed up after the first frame
+    public static final boolean LAZY = !TRAINING && Boolean.parseBoolean(System.getProperty("apex.lazy", "true"));
+    public static final Apex APEX = new Apex();
     private final ApexClip clip = new ApexClip();
-    private final ScheduledThreadPoolExecutor mainExecutor = new ScheduledThreadPoolExecutor(2, new ApexThreadFactory("Main"));
-    private List<Track> playlist = new ArrayList<>();
-    private int index = 0;
+    private final ScheduledExecutorService mainExecutor = ApexExecutors.get().getMain();
+    private final PlaybackTimers timers = new PlaybackTimers(mainExecutor);
+    private ScheduledFuture<?> sessionSave;
+    // the playlist version whose order was last saved
+    private volatile int savedOrder = -1;
+    private PlayQueue queue;
+    private SessionStore session;
+    // where the current track starts once it is opened, while LAZY has it selected but not opened yet
+    private int deferredFrame = 0;
+    private int deferredLoops = 0;
+    private final Playlist playlist = new Playlist(new Playlist.Listener() {
+        @Override
+        public void inserted(int index, Track track) {
+            SwingUtilities.invokeLater(() -> {
+                ApexControl.trackListModel.add(index, track.getName());
+                ApexControl.trackList.setSelectedIndex(playlist.getIndex());
+            });
+        }
+
+        @Override
+        public void removed(int index, Track track) {
+            SwingUtilities.invokeLater(() -> {
+                ApexControl.trackListModel.remove(index);
+                ApexControl.trackList.setSelectedIndex(playlist.getIndex());
+            });
+        }
+
+        @Override
+        public void reordered() {
+            updateListModel();
+        }
+    });
 
     public static void main(String[] args) {
         APEX.start();
     }
 
     private void start() {
-        ApexControl.init();
-        ApexWindow.getInstance().setVisible(true);
-        this.updatePlaylist();
-        this.setIndex(0);
+        StartupLog.mark("main");
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Apex Shutdown Thread"));
+        Resources resources = Resources.getInstance();
+        queue = resources.getPlayQueue();
+        session = resources.getSession();
+        StartupLog.time("init controls", ApexControl::init);
+        clip.addLineListener(event -> {
+            if (event.getType() == LineEvent.Type.STOP) {
+                mainExecutor.execute(this::clipStopped);
+            }
+        });
+        if (LAZY) {
+            ApexWindow.getInstance().addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowOpened(WindowEvent e) {
+                    ApexExecutors.get().getIo().execute(() -> StartupLog.time("open audio line", clip.getMixer()::open));
+                }
+            });
+        }
+        StartupLog.time("show window", () -> ApexWindow.getInstance().setVisible(true));
+        resources.whenReady(() -> mainExecutor.execute(() -> {
+            StartupLog.time("build playlist", this::updatePlaylist);
+            StartupLog.time("open first track", () -> {
+                if (!restoreSession() && !playlist.isEmpty()) {
+                    modifyAndUpdateApp(playlist.get(0), 0, 0, 0, !LAZY);
+                }
+            });
+            if (LAZY && !playlist.isEmpty()) {
+                warmUpDecoder(getCurrentTrack());
+            }
+            ApexControl.update();
+            scheduleSessionSave();
+            if (TRAINING) {
+                mainExecutor.schedule(() -> System.exit(0), 5, TimeUnit.SECONDS);
+            }
+            StartupLog.report();
+            PlaybackMetrics.get().start(resources.getCacheDir().resolve("metrics"));
+            LoopDetector.get().setListener(track -> mainExecutor.execute(() -> {
+                if (!playlist.isEmpty() && getCurrentTrack() == track) {
+                    clip.setLoopPoints(track.getLoopStart(), track.getLoopEnd());
+                    ApexControl.trackId.setText(describe(track));
+                }
+            }));
+            playlist.snapshot().forEach(this::analyze);
+            resources.addChangeListener(change -> mainExecutor.execute(() -> {
+                playlist.apply(change);
+                ApexControl.update();
+                change.getUpdated()
+                    .values()
+                    .stream()
+                    .filter(Playlist::isPlayable)
+                    .map(Track::get)
+                    .forEach(this::analyze);
+                change.getArchived().stream().map(Track::get).forEach(this::analyze);
+            }));
+        }));
+    }
+
+    private void shutdown() {
+        saveSession();
+        if (session != null) {
+            session.save();
+        }
+        clip.stop();
+        ApexExecutors.get().shutdown();
+        Resources.getInstance().getMetadataCache().markDirty();
+        Resources.getInstance().getMetadataCache().save();
+    }
+
+    // reopens the track that was playing when the app was closed, at the frame it was closed at
+    private boolean restoreSession() {
+        if (!session.hasTrack()) {
+            return false;
+        }
+        if (!session.getOrder().isEmpty()) {
+            playlist.restore(session.getOrder());
+        }
+        Track track = resolve(session.getTrack());
+        if (track == null) {
+            return false;
+        }
+        modifyAndUpdateApp(track, playlist.indexOf(track), session.getFrame(), session.getLoops(), !LAZY && session.isPlaying());
+        return true;
+    }
+
+    // reads the file and decodes its first block on the io executor, so that pressing play does not load any of it
+    private void warmUpDecoder(Track track) {
+        Executor io = ApexExecutors.get().getIo();
+        io.execute(() -> StartupLog.time("warm up decoder", () -> {
+            track.prefetch();
+            try (AudioInputStream stream = track.getCodec().open(track.getSource(), AUDIO_FORMAT, 0)) {
+                //noinspection ResultOfMethodCallIgnored
+                stream.read(new byte[AUDIO_FORMAT.getFrameSize() * 1024]);
+            } catch (Exception e) {
+                LOGGER.debug("Unable to warm up the decoder with " + track.getId(), e);
+            }
+        }));
+    }
+
+    private void saveSession() {
+        if (session == null || playlist.isEmpty() || TRAINING) {
+            return;
+        }
+        int version = playlist.getVersion();
+        if (version != savedOrder) {
+            savedOrder = version;
+            session.setOrder(playlist.isShuffled()
+                ? playlist.snapshot().stream().map(Track::getId).collect(Collectors.toList())
+                : Collections.emptyList());
+        }
+        boolean stopped = ApexControl.stopped;
+        boolean open = clip.isOpen();
+        int frame = stopped ? 0 : open ? clip.getFramePosition() : deferredFrame;
+        int loops = stopped ? 0 : open ? clip.getLoopsPlayed() : deferredLoops;
+        session.update(getCurrentTrack().getId(), frame, loops, ApexControl.playing);
+    }
+
+    // the position is saved every few seconds while playing, while paused nothing is scheduled
+    private void scheduleSessionSave() {
+        if (ApexControl.playing && sessionSave == null) {
+            sessionSave = mainExecutor.schedule(() -> {
+                sessionSave = null;
+                saveSession();
+                scheduleSessionSave();
+            }, 5, TimeUnit.SECONDS);
+        }
+    }
+
+    // the clip paused itself: faded out by the sleep timer, or played to its end after the last loop
+    private void clipStopped() {
+        if (clip.isActive() || !ApexControl.playing) {
+            return;
+        }
+        ApexControl.playing = false;
+        if (clip.isAtEnd()) {
+            ApexControl.stopped = true;
+            timers.trackChanged();
+        }
         ApexControl.update();
+        saveSession();
+    }
+
+    private void analyze(Track track) {
+        LoudnessAnalyzer.get().submit(track);
+        LoopDetector.get().submit(track);
+    }
+
+    private static String describe(Track track) {
+        return track.isLoopInferred() ? track.getId() + " (inferred loop)" : track.getId();
     }
 
     private void updatePlaylist() {
-        playlist = Resources.getInstance()
-            .getResources()
-            .values()
-            .stream()
-            .filter(f -> f.getName().endsWith(".ogg"))
-            .map(Track::get)
-            .sorted(Comparator.comparing(Track::getId))
-            .collect(Collectors.toList());
-        updateListModel();
+        playlist.reset(Resources.getInstance().getTracks());
     }
 
     private void updateListModel() {
-        ApexControl.trackListModel.clear();
-        ApexControl.trackListModel.addAll(playlist.stream().map(Track::getName).collect(Collectors.toList()));
-        ApexControl.trackList.setSelectedIndex(index);
-        Util.sleep(100);
-        updateScrollBar();
+        List<String> names = playlist.snapshot().stream().map(Track::getName).collect(Collectors.toList());
+        int index = playlist.getIndex();
+        SwingUtilities.invokeLater(() -> {
+            ApexControl.trackListModel.clear();
+            ApexControl.trackListModel.addAll(names);
+            ApexControl.trackList.setSelectedIndex(index);
+            // let the list lay itself out before scrolling to the selection
+            SwingUtilities.invokeLater(this::updateScrollBar);
+        });
     }
 
-    public List<Track> getPlaylist() {
+    public Playlist getPlaylist() {
         return playlist;
     }
 
     public int getIndex() {
-        return index;
+        return playlist.getIndex();
     }
 
     public void setIndex(int index) {
         modifyAndUpdateApp(playlist.get(index), index);
     }
 
-    public ScheduledThreadPoolExecutor getMainExecutor() {
+    public ApexClip getClip() {
+        return clip;
+    }
+
+    public ScheduledExecutorService getMainExecutor() {
         return mainExecutor;
     }
 
+    public PlaybackTimers getTimers() {
+        return timers;
+    }
+
     public void takeAction(int action) {
         mainExecutor.execute(() -> {
+            if (playlist.isEmpty()) {
+                return;
+            }
+            int index = playlist.getIndex();
             Track track = getCurrentTrack();
             switch (action) {
                 case 0: // Next
-                    setIndex(index + 1);
+                    play(pollNext(), true);
                     break;
                 case 1: // Previous
-                    setIndex(index - 1);
+                    Track previous = pollPrevious();
+                    if (previous != null) {
+                        // Next returns to the track we came back from
+                        queue.addFirst(track.getId());
+                        play(previous, false);
+                    } else {
+                        play(playlist.get(Math.floorMod(index - 1, playlist.size())), false);
+                    }
                     break;
                 case 2: // Shuffle
-                    Util.shuffle(playlist);
-                    index = playlist.indexOf(track);
-                    updateListModel();
+                    playlist.shuffle();
                     break;
                 case 3: // Stop
                     clip.stop();
@@ -95,17 +303,11 @@ public class Apex {
                     ApexControl.stopped = true;
                     break;
                 case 4: // Pause/Play
-                    boolean active = clip.isActive();
-                    ApexControl.playing = !active;
-                    if (active) {
+                    if (clip.isActive()) {
+                        ApexControl.playing = false;
                         clip.stop();
                     } else {
-                        if (ApexControl.stopped) {
-                            ApexControl.stopped = false;
-                            clip.open(track, AUDIO_FORMAT);
-                            clip.start();
-                        }
-                        clip.start();
+                        resume(track, 0);
                     }
                     break;
                 case 5: // Search
@@ -115,56 +317,233 @@ public class Apex {
                     break;
                 case 6: // Update
                     updatePlaylist();
-                    index = playlist.indexOf(track);
                     break;
                 case 7: // Mouse Double-click/Enter on the playlist
-                    setIndex(ApexControl.trackList.getSelectedIndex());
+                    play(playlist.get(ApexControl.trackList.getSelectedIndex()), true);
                     break;
                 case 8: // Surprise Me
-                    setIndex(Util.random(0, playlist.size()));
+                    play(playlist.get(Util.random(0, playlist.size())), true);
+                    break;
+                case 9: // Play Next
+                    queue.addFirst(playlist.get(ApexControl.trackList.getSelectedIndex()).getId());
+                    prefetchNext();
+                    break;
+                case 10: // Add to Queue
+                    queue.add(playlist.get(ApexControl.trackList.getSelectedIndex()).getId());
+                    prefetchNext();
                     break;
             }
             ApexControl.update();
+            saveSession();
+            scheduleSessionSave();
         });
     }
 
+    // plays on from where the track was paused, fading in over the given number of frames. Any other fade, such as
+    // the sleep timer's, is called off by playing on
+    private void resume(Track track, int fadeFrames) {
+        ApexControl.playing = true;
+        if (ApexControl.stopped) {
+            ApexControl.stopped = false;
+            deferredFrame = deferredLoops = 0;
+            clip.open(track, AUDIO_FORMAT);
+        } else if (!clip.isOpen()) {
+            openDeferred(track);
+        }
+        if (fadeFrames > 0) {
+            clip.fade(0, 1, fadeFrames, false);
+        } else {
+            clip.cancelFade();
+        }
+        clip.start();
+    }
+
+    // main executor only, for the sleep timer
+    void fadeOut(long millis) {
+        if (clip.isActive()) {
+            clip.fade(1, 0, toFrames(millis), true);
+        }
+    }
+
+    // main executor only, starts playing from silence unless already playing
+    void fadeIn(long millis) {
+        if (playlist.isEmpty() || clip.isActive()) {
+            return;
+        }
+        resume(getCurrentTrack(), toFrames(millis));
+        saveSession();
+        scheduleSessionSave();
+    }
+
+    // main executor only, returns the loop the current track stops after or 0 if it cannot
+    int stopAfterLoops(int loops) {
+        if (playlist.isEmpty() || ApexControl.stopped) {
+            return 0;
+        }
+        if (!clip.isOpen()) {
+            openDeferred(getCurrentTrack());
+        }
+        clip.loop(loops - 1);
+        return clip.getLoopsPlayed() + loops;
+    }
+
+    // main executor only, takes back stopAfterLoops
+    void loopOn() {
+        if (clip.isOpen()) {
+            clip.loop(Clip.LOOP_CONTINUOUSLY);
+        }
+    }
+
+    private static int toFrames(long millis) {
+        return (int) (AUDIO_FORMAT.getFrameRate() * millis / 1000);
+    }
+
     public boolean searchAndPlay(int start, int end) {
         String searchText = ApexControl.searchTextArea.getText().toLowerCase().replaceAll("\n", "");
-        for (int i = start; i < end; i++) {
-            Track t = playlist.get(i);
-            if (t.getId().contains(searchText)) {
-                modifyAndUpdateApp(t, i);
-                return true;
+        int found = playlist.find(searchText, start, end);
+        if (found == -1) {
+            return false;
+        }
+        play(playlist.get(found), true);
+        return true;
+    }
+
+    private void play(Track track, boolean remember) {
+        // the current track goes into the history even if it was only selected, as LAZY leaves it unopened
+        Track current = playlist.isEmpty() ? null : getCurrentTrack();
+        if (remember && current != null) {
+            queue.remember(current.getId());
+        }
+        modifyAndUpdateApp(track, playlist.indexOf(track));
+    }
+
+    // plays a track that is not downloaded yet while it downloads, once its headers have arrived
+    public void stream(OnlineTrack online) {
+        ApexExecutors.get().getIo().execute(() -> {
+            DownloadScheduler downloads = Resources.getInstance().getDownloads();
+            Track track;
+            try {
+                StreamingSource source = downloads.stream(online);
+                downloads.submit(online, null).whenComplete((v, e) -> {
+                    if (e != null) {
+                        mainExecutor.execute(() -> forgetStream(source));
+                    }
+                });
+                track = Track.get(source);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Unable to stream " + online.getName(), e);
+                return;
+            }
+            if (track.getCodec() == null) {
+                LOGGER.warn("Unable to stream " + online.getName() + ", no codec reads it");
+                return;
+            }
+            mainExecutor.execute(() -> {
+                playlist.insert(track);
+                play(track, true);
+                ApexControl.update();
+            });
+        });
+    }
+
+    // the download of a streamed track failed, it leaves the playlist unless it was stored some other way
+    private void forgetStream(StreamingSource source) {
+        Track track = Track.forId(Util.getId(source.getName()));
+        if (track != null && track.getSource() == source) {
+            playlist.remove(track);
+            ApexControl.update();
+        }
+    }
+
+    private Track resolve(String id) {
+        Track track = id == null ? null : Track.forId(id);
+        return track != null && playlist.indexOf(track) != -1 ? track : null;
+    }
+
+    // queued tracks first, tracks that are gone since they were queued are skipped
+    private Track pollNext() {
+        for (String id = queue.poll(); id != null; id = queue.poll()) {
+            Track track = resolve(id);
+            if (track != null) {
+                return track;
             }
         }
-        for (int i = start; i < end; i++) {
-            Track t = playlist.get(i);
-            if (t.getName().toLowerCase().contains(searchText)) {
-                modifyAndUpdateApp(t, i);
-                return true;
+        return playlist.get(Math.floorMod(playlist.getIndex() + 1, playlist.size()));
+    }
+
+    private Track pollPrevious() {
+        for (String id = queue.back(); id != null; id = queue.back()) {
+            Track track = resolve(id);
+            if (track != null) {
+                return track;
             }
         }
-        return false;
+        return null;
+    }
+
+    public Track peekNext() {
+        if (playlist.isEmpty()) {
+            return null;
+        }
+        Track queued = resolve(queue.find(id -> resolve(id) != null));
+        return queued != null ? queued : playlist.get(Math.floorMod(playlist.getIndex() + 1, playlist.size()));
+    }
+
+    private void prefetchNext() {
+        Track next = peekNext();
+        if (next != null && next.getSource() != null) {
+            ApexExecutors.get().getIo().execute(next::prefetch);
+        }
+    }
+
+    public PlayQueue getQueue() {
+        return queue;
     }
 
     public Track getCurrentTrack() {
-        return playlist.get(index);
+        return playlist.getCurrent();
     }
 
     private void modifyAndUpdateApp(Track track, int index) {
+        modifyAndUpdateApp(track, index, 0, 0, true);
+    }
+
+    private void modifyAndUpdateApp(Track track, int index, int startFrame, int loops, boolean play) {
         clip.stop();
-        this.index = index;
-        clip.open(track, AUDIO_FORMAT);
-        clip.start();
+        playlist.setIndex(index);
+        deferredFrame = startFrame;
+        deferredLoops = loops;
+        if (play || !LAZY) {
+            openDeferred(track);
+        } else {
+            clip.close();
+        }
+        if (play) {
+            clip.start();
+        }
         ApexControl.trackList.setSelectedIndex(index);
         updateScrollBar();
         ApexControl.trackName.setText(track.getName());
-        ApexControl.trackId.setText(track.getId());
-        ApexControl.playing = true;
+        ApexControl.trackId.setText(describe(track));
+        ApexControl.playing = play;
         ApexControl.stopped = false;
+        timers.trackChanged();
+        prefetchNext();
+        saveSession();
+        scheduleSessionSave();
+    }
+
+    private void openDeferred(Track track) {
+        clip.open(track, AUDIO_FORMAT, deferredFrame);
+        clip.setLoopsPlayed(deferredLoops);
+        deferredFrame = deferredLoops = 0;
     }
 
     private void updateScrollBar() {
+        int index = playlist.getIndex();
+        if (playlist.isEmpty()) {
+            return;
+        }
         JScrollBar scrollBar = ApexControl.trackListPane.getVerticalScrollBar();
         int rowHeight = scrollBar.getMaximum() / playlist.size();
         int firstVisibleIndex = scrollBar.getValue() / rowHeight;
@@ -0,0 +1,255 @@
+package net.vpg.apex;
+
+import net.vpg.apex.core.ApexExecutors;
+import net.vpg.apex.core.DownloadScheduler;
+import net.vpg.apex.core.LoopDetector;
+import net.vpg.apex.core.LoudnessAnalyzer;
+import net.vpg.apex.core.Mirror;
+import net.vpg.apex.core.OnlineTrack;
+import net.vpg.apex.core.Resources;
+import net.vpg.apex.core.Track;
+import net.vpg.apex.core.TrackMetadata;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+// Library maintenance without the window, for preparing machines and images:
+// java -cp pm-apex.jar net.vpg.apex.ApexCli <command> [--threads N]
+// Every command works through the tracks on N threads, one core each by default, and ends with its throughput.
+public class ApexCli {
+    private static final String USAGE = String.join(System.lineSeparator(),
+        "usage: ApexCli <command> [--threads N]",
+        "  verify            decode every track to the end and check its length and loop points",
+        "  loops [--detect]  print the loop points of every track, --detect infers the missing ones first",
+        "  prebuild          fill the metadata cache: codecs, loudness and inferred loop points",
+        "  sync              download the tracks missing from the library",
+        "  pack              move loose tracks into the archive, needs -Dapex.archive=true");
+    private final Resources resources = Resources.getInstance();
+    private final int threads;
+    private final boolean detect;
+
+    private ApexCli(int threads, boolean detect) {
+        this.threads = threads;
+        this.detect = detect;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        String command = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean detect = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--detect")) {
+                detect = true;
+            } else if (command == null && !args[i].startsWith("-")) {
+                command = args[i];
+            } else {
+                command = null;
+                break;
+            }
+        }
+        int status;
+        if (command == null) {
+            System.err.println(USAGE);
+            status = 2;
+        } else {
+            status = new ApexCli(threads, detect).run(command);
+        }
+        System.exit(status);
+    }
+
+    private int run(String command) {
+        resources.awaitReady();
+        int status;
+        switch (command) {
+            case "verify":
+                status = verify();
+                break;
+            case "loops":
+                status = loops();
+                break;
+            case "prebuild":
+                status = prebuild();
+                break;
+            case "sync":
+                status = sync();
+                break;
+            case "pack":
+                status = pack();
+                break;
+            default:
+                System.err.println(USAGE);
+                return 2;
+        }
+        resources.getMetadataCache().save();
+        ApexExecutors.get().shutdown();
+        return status;
+    }
+
+    private int verify() {
+        AudioFormat format = Apex.AUDIO_FORMAT;
+        return forEach("verify", tracks(), Track::getId, this::sizeOf, track -> {
+            long frames = 0;
+            long expected;
+            try (AudioInputStream stream = track.getCodec().open(track.getSource(), format, 0)) {
+                expected = stream.getFrameLength();
+                byte[] buffer = new byte[format.getFrameSize() * 16384];
+                for (int read; (read = stream.read(buffer)) != -1; ) {
+                    frames += read / format.getFrameSize();
+                }
+            }
+            if (frames == 0) {
+                throw new IllegalStateException("no audio");
+            }
+            if (expected != AudioSystem.NOT_SPECIFIED && expected != frames) {
+                throw new IllegalStateException("decoded " + frames + " of " + expected + " frames");
+            }
+            if (track.getLoopEnd() > frames || track.getLoopStart() >= track.getLoopEnd() && track.getLoopEnd() != -1) {
+                throw new IllegalStateException("loop " + track.getLoopStart() + "-" + track.getLoopEnd() + " outside of " + frames + " frames");
+            }
+            return frames;
+        });
+    }
+
+    private int loops() {
+        List<Track> tracks = tracks();
+        int status = 0;
+        if (detect) {
+            List<Track> pending = tracks.stream().filter(Track::needsLoopDetection).collect(Collectors.toList());
+            status = forEach("detect", pending, Track::getId, this::sizeOf, track -> {
+                LoopDetector.get().detect(track);
+                return 0;
+            });
+        }
+        System.out.println("id\tstart\tend\tkind");
+        for (Track track : tracks) {
+            String kind = track.getLoopEnd() == -1 ? "none" : track.isLoopInferred() ? "inferred" : "tagged";
+            System.out.println(track.getId() + "\t" + track.getLoopStart() + "\t" + track.getLoopEnd() + "\t" + kind);
+        }
+        return status;
+    }
+
+    private int prebuild() {
+        // probing every track for tracks() already filled in the codecs
+        return forEach("prebuild", tracks(), Track::getId, this::sizeOf, track -> {
+            TrackMetadata metadata = track.getMetadata();
+            if (!metadata.hasLoudness()) {
+                LoudnessAnalyzer.get().measure(track, false);
+            }
+            if (track.needsLoopDetection()) {
+                LoopDetector.get().detect(track);
+            }
+            return 0;
+        });
+    }
+
+    private int sync() {
+        List<OnlineTrack> missing = resources.getMissingTracks(tracks(), true);
+        DownloadScheduler downloads = resources.getDownloads();
+        int status = forEach("sync", missing, OnlineTrack::getName, OnlineTrack::getSize, track -> {
+            try {
+                downloads.submit(track, null).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            return 0;
+        });
+        for (Mirror mirror : downloads.getMirrors()) {
+            double throughput = mirror.getThroughput();
+            System.out.println("  " + mirror + ": " + (Double.isNaN(throughput) ? "unused" : Util.bytesToString((long) throughput) + "/s"));
+        }
+        return status;
+    }
+
+    private int pack() {
+        if (resources.getArchive() == null) {
+            System.err.println("pack needs the archive, run with -Dapex.archive=true");
+            return 2;
+        }
+        List<Track> loose = tracks().stream().filter(track -> track.getFile() != null).collect(Collectors.toList());
+        return forEach("pack", loose, Track::getId, this::sizeOf, track -> {
+            File file = track.getFile();
+            resources.store(file.getName(), file.toPath());
+            return 0;
+        });
+    }
+
+    private List<Track> tracks() {
+        List<Track> tracks = resources.getTracks();
+        tracks.sort(Comparator.comparing(Track::getId));
+        return tracks;
+    }
+
+    private long sizeOf(Track track) {
+        return track.getSource().getSize();
+    }
+
+    // runs the job for every item on the worker threads, printing a line per item and the totals, 1 if any failed
+    private <T> int forEach(String name, List<T> items, Function<T, String> label, ToLongFunction<T> size, Job<T> job) {
+        if (items.isEmpty()) {
+            System.out.println(name + ": nothing to do");
+            return 0;
+        }
+        ExecutorService workers = ApexExecutors.get().newWorkers("CLI", Math.min(threads, items.size()));
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long[] bytes = new long[1];
+        long[] frames = new long[1];
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(items.size());
+        for (T item : items) {
+            futures.add(workers.submit(() -> {
+                long itemStart = System.nanoTime();
+                long itemBytes = size.applyAsLong(item); // before the job, which may move the item
+                String result;
+                try {
+                    long itemFrames = job.run(item);
+                    synchronized (bytes) {
+                        bytes[0] += itemBytes;
+                        frames[0] += itemFrames;
+                    }
+                    result = "ok  ";
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    result = "FAIL " + e + " ";
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - itemStart);
+                System.out.printf("[%d/%d] %s%s (%d ms)%n", done.incrementAndGet(), items.size(), result, label.apply(item), millis);
+            }));
+        }
+        for (Future<?> future : futures) {
+            Util.run(future::get);
+        }
+        workers.shutdown();
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        StringBuilder summary = new StringBuilder(String.format("%s: %d done, %d failed in %.1f s on %d threads | %.1f items/s, %s/s",
+            name, items.size() - failed.get(), failed.get(), seconds, Math.min(threads, items.size()),
+            items.size() / seconds, Util.bytesToString((long) (bytes[0] / seconds))));
+        if (frames[0] > 0) {
+            summary.append(String.format(", %.0fx realtime", frames[0] / Apex.AUDIO_FORMAT.getFrameRate() / seconds));
+        }
+        System.out.println(summary);
+        return failed.get() == 0 ? 0 : 1;
+    }
+
+    @FunctionalInterface
+    private interface Job<T> {
+        // the number of audio frames processed, 0 if the job does not decode
+        long run(T item) throws Exception;
+    }
+}
@@ -0,0 +1,132 @@
+package net.vpg.apex;
+
+import net.vpg.apex.components.ApexControl;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static net.vpg.apex.Apex.APEX;
+
+// The sleep timer, stopping after a number of loops and starting at a time of day. A timer is one task on the main
+// executor, whose queue parks the thread until the earliest deadline, so timers that are set wake nothing up before
+// they are due. Fades are not stepped from here, the clip ramps its level frame by frame as it renders.
+// Confined to the main executor like the rest of the player state.
+public class PlaybackTimers {
+    public static final long FADE_OUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final long FADE_IN_MILLIS = TimeUnit.SECONDS.toMillis(3);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture<?> sleep;
+    private LocalDateTime sleepAt;
+    private ScheduledFuture<?> start;
+    private LocalDateTime startAt;
+    // the loop the current track stops after, 0 if it loops on
+    private int stopAfterLoop = 0;
+
+    PlaybackTimers(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    // fades out over the last seconds before the given time from now and pauses
+    public void sleepIn(Duration duration) {
+        executor.execute(() -> {
+            cancel(sleep);
+            sleepAt = LocalDateTime.now().plus(duration);
+            long delay = Math.max(0, duration.toMillis() - FADE_OUT_MILLIS);
+            sleep = executor.schedule(this::sleepDue, delay, TimeUnit.MILLISECONDS);
+            ApexControl.update();
+        });
+    }
+
+    // starts playing at the next time the clock shows the given time, fading in
+    public void startAt(LocalTime time) {
+        executor.execute(() -> {
+            cancel(start);
+            LocalDateTime now = LocalDateTime.now();
+            LocalDateTime at = now.toLocalDate().atTime(time);
+            startAt = at.isAfter(now) ? at : at.plusDays(1);
+            scheduleStart();
+            ApexControl.update();
+        });
+    }
+
+    // plays the current track through the given number of loops, then on past the loop to its end and stops
+    public void stopAfterLoops(int loops) {
+        executor.execute(() -> {
+            stopAfterLoop = APEX.stopAfterLoops(loops);
+            ApexControl.update();
+        });
+    }
+
+    public void cancelAll() {
+        executor.execute(() -> {
+            cancel(sleep);
+            cancel(start);
+            sleep = start = null;
+            sleepAt = startAt = null;
+            if (stopAfterLoop != 0) {
+                stopAfterLoop = 0;
+                APEX.loopOn();
+            }
+            APEX.getClip().cancelFade();
+            ApexControl.update();
+        });
+    }
+
+    // main executor only, the loops counted by stopAfterLoops belong to the track that was playing
+    void trackChanged() {
+        stopAfterLoop = 0;
+    }
+
+    // main executor only
+    public String describe() {
+        List<String> timers = new ArrayList<>();
+        if (sleepAt != null) {
+            timers.add("Sleeping at " + sleepAt.format(TIME));
+        }
+        if (startAt != null) {
+            timers.add("Starting at " + startAt.format(TIME));
+        }
+        if (stopAfterLoop != 0) {
+            timers.add("Stopping after loop " + stopAfterLoop);
+        }
+        return String.join(" · ", timers);
+    }
+
+    private void sleepDue() {
+        sleep = null;
+        sleepAt = null;
+        APEX.fadeOut(FADE_OUT_MILLIS);
+        ApexControl.update();
+    }
+
+    private void scheduleStart() {
+        long delay = Duration.between(LocalDateTime.now(), startAt).toMillis();
+        start = executor.schedule(this::startDue, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void startDue() {
+        // the delay runs on the monotonic clock, if the wall clock was set back since then it is not time yet
+        if (LocalDateTime.now().plusSeconds(1).isBefore(startAt)) {
+            scheduleStart();
+            return;
+        }
+        start = null;
+        startAt = null;
+        APEX.fadeIn(FADE_IN_MILLIS);
+        ApexControl.update();
+    }
+
+    private static void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -145,6 +145,15 @@ public class Util {
         }
     }
 
+    public static void shuffle(int[] base, int size) {
+        for (int i = size - 1; i > 0; i--) {
+            int j = random(0, i + 1);
+            int swap = base[i];
+            base[i] = base[j];
+            base[j] = swap;
+        }
+    }
+
     public static int random(int from, int to) {
         return (int) (Math.random() * (to - from) + from);
     }
@@ -2,12 +2,23 @@ package net.vpg.apex.components;
 
 import net.vpg.apex.Apex;
 import net.vpg.apex.Util;
+import net.vpg.apex.core.ApexExecutors;
+import net.vpg.apex.core.OnlineTrack;
 import net.vpg.apex.core.Resources;
+import net.vpg.apex.core.Track;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static net.vpg.apex.Apex.APEX;
 
@@ -15,6 +26,8 @@ public class ApexControl {
     public static WrappedTextArea trackId;
     public static WrappedTextArea trackName;
     public static WrappedTextArea trackIndex;
+    public static WrappedTextArea upNext;
+    public static WrappedTextArea timerStatus;
     public static WrappedTextArea fileProgressText;
     public static WrappedTextArea totalProgressText;
     public static WrappedTextArea tracksFound;
@@ -30,9 +43,14 @@ public class ApexControl {
     public static JButton lookupTracks;
     public static JButton downloadAll;
     public static JButton surpriseMe;
+    public static JButton timer;
     public static DefaultListModel<String> trackListModel;
     public static JList<String> trackList;
     public static JScrollPane trackListPane;
+    public static DefaultListModel<String> onlineTrackListModel;
+    public static JList<String> onlineTrackList;
+    // the tracks listed in onlineTrackList, replaced on the Swing thread by every look up
+    private static List<OnlineTrack> onlineTracks = Collections.emptyList();
     public static boolean playing = true;
     public static boolean stopped = false;
 
@@ -42,6 +60,7 @@ public class ApexControl {
         trackName = Util.makeTextArea("Track Name", textArea -> textArea.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 12)));
         trackId = Util.makeTextArea("Track ID", textArea -> textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12)));
         trackIndex = Util.makeTextArea("Index of the track in the playlist");
+        upNext = Util.makeTextArea("The track played after this one, right-click the playlist to queue tracks");
         searchTextArea = new SearchTextArea("Search and Play");
         searchTextArea.addKeyListener(new KeyAdapter() {
             @Override
@@ -60,6 +79,20 @@ public class ApexControl {
         search = Util.makeButton("Search and Play", "Type the name of a track above to search and play it" +
             "For example: Typing 'Wally' plays 'Battle! Wally'", 5);
         surpriseMe = Util.makeButton("Surprise Me!", "Plays a random track", 8);
+        timerStatus = new WrappedTextArea();
+        timer = new JButton("Timer");
+        timer.setToolTipText("Sleep timer, stop after a number of loops or start playing at a time");
+        JPopupMenu timerMenu = Util.apply(new JPopupMenu(),
+            menu -> menu.add(timerItem("Sleep in 15 minutes", () -> APEX.getTimers().sleepIn(Duration.ofMinutes(15)))),
+            menu -> menu.add(timerItem("Sleep in 30 minutes", () -> APEX.getTimers().sleepIn(Duration.ofMinutes(30)))),
+            menu -> menu.add(timerItem("Sleep in 60 minutes", () -> APEX.getTimers().sleepIn(Duration.ofMinutes(60)))),
+            JPopupMenu::addSeparator,
+            menu -> menu.add(timerItem("Stop after this loop", () -> APEX.getTimers().stopAfterLoops(1))),
+            menu -> menu.add(timerItem("Stop after 3 loops", () -> APEX.getTimers().stopAfterLoops(3))),
+            JPopupMenu::addSeparator,
+            menu -> menu.add(timerItem("Start at...", ApexControl::askStartTime)),
+            menu -> menu.add(timerItem("Cancel timers", () -> APEX.getTimers().cancelAll())));
+        timer.addActionListener(e -> timerMenu.show(timer, 0, timer.getHeight()));
 
         tracksFound = new WrappedTextArea("0 new tracks found");
         fileProgressText = new WrappedTextArea();
@@ -67,23 +100,123 @@ public class ApexControl {
         fileProgressBar = Util.apply(new JProgressBar(), bar -> bar.setStringPainted(true));
         totalProgressBar = Util.apply(new JProgressBar(), bar -> bar.setStringPainted(true));
 
+        onlineTrackListModel = new DefaultListModel<>();
+        onlineTrackList = Util.apply(new JList<>(onlineTrackListModel),
+            list -> list.setToolTipText("Double-click a track to play it while it downloads"),
+            list -> list.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    if (e.getClickCount() == 2 && e.getButton() == MouseEvent.BUTTON1) {
+                        streamSelected();
+                    }
+                }
+            }),
+            list -> list.addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyTyped(KeyEvent e) {
+                    if (e.getKeyChar() == '\n') {
+                        streamSelected();
+                    }
+                }
+            }));
+
         lookupTracks = new JButton("Refresh");
         downloadAll = new JButton("Download all found tracks");
-        lookupTracks.addActionListener(e -> tracksFound.setText(Resources.getInstance().getMissingTracks().size() + " more tracks found"));
+        lookupTracks.addActionListener(e -> lookupTracks(true));
         downloadAll.addActionListener(e -> {
             ApexControl.lookupTracks.setEnabled(false);
             ApexControl.downloadAll.setEnabled(false);
-            new DownloadTask(Resources.getInstance().getMissingTracks(), () -> Apex.APEX.takeAction(6));
-            Util.run(() -> Downloader.download(Resources.getInstance().getBaseDownloadUrl() + "src/main/resources/net/vpg/apex/tracks.json", null));
+            ApexExecutors.get().getIo().execute(() -> {
+                List<OnlineTrack> missing;
+                try {
+                    missing = Resources.getInstance().getMissingTracks();
+                } catch (RuntimeException ex) {
+                    Apex.LOGGER.error("Unable to look up online tracks", ex);
+                    SwingUtilities.invokeLater(() -> {
+                        tracksFound.setText("Unable to look up online tracks");
+                        tracksFound.setVisible(true);
+                        lookupTracks.setEnabled(true);
+                        downloadAll.setEnabled(true);
+                    });
+                    return;
+                }
+                // the task shows its progress panel as it starts, which belongs on the Swing thread
+                SwingUtilities.invokeLater(() -> new DownloadTask(missing));
+                Util.run(() -> Downloader.download(Resources.getInstance().getBaseDownloadUrl() + "src/main/resources/net/vpg/apex/tracks.json", null));
+            });
+        });
+
+    }
+
+    public static void lookupTracks(boolean refresh) {
+        lookupTracks.setEnabled(false);
+        downloadAll.setEnabled(false);
+        ApexExecutors.get().getIo().execute(() -> {
+            String text;
+            List<OnlineTrack> found = Collections.emptyList();
+            try {
+                found = Resources.getInstance().getMissingTracks(refresh);
+                text = found.size() + " more tracks found";
+            } catch (RuntimeException e) {
+                Apex.LOGGER.error("Unable to look up online tracks", e);
+                text = "Unable to look up online tracks";
+            }
+            String result = text;
+            List<OnlineTrack> tracks = found;
+            List<String> names = tracks.stream().map(ApexControl::describe).collect(Collectors.toList());
+            SwingUtilities.invokeLater(() -> {
+                onlineTracks = tracks;
+                onlineTrackListModel.clear();
+                onlineTrackListModel.addAll(names);
+                tracksFound.setText(result);
+                tracksFound.setVisible(true);
+                lookupTracks.setEnabled(true);
+                downloadAll.setEnabled(true);
+            });
         });
+    }
+
+    private static JMenuItem timerItem(String text, Runnable action) {
+        return Util.apply(new JMenuItem(text), item -> item.addActionListener(e -> action.run()));
+    }
+
+    private static void askStartTime() {
+        String text = JOptionPane.showInputDialog(timer, "Start playing at (HH:mm)", "07:00");
+        if (text == null) {
+            return;
+        }
+        try {
+            APEX.getTimers().startAt(LocalTime.parse(text.strip()));
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(timer, "Not a time of day: " + text, "Start at", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    // the display name from tracks.json when it has one
+    private static String describe(OnlineTrack track) {
+        Track known = Track.forId(Util.getId(track.getName()));
+        String name = known == null ? track.getName() : known.getName();
+        return name + " (" + Util.bytesToString(track.getSize()) + ")";
+    }
 
+    private static void streamSelected() {
+        int index = onlineTrackList.getSelectedIndex();
+        if (index != -1) {
+            APEX.stream(onlineTracks.get(index));
+        }
     }
 
     public static void update() {
         int index = APEX.getIndex();
         trackIndex.setText("Track " + (index + 1) + "/" + APEX.getPlaylist().size());
-        next.setEnabled(index != APEX.getPlaylist().size() - 1);
-        previous.setEnabled(index != 0);
+        next.setEnabled(APEX.getPlaylist().size() > 1);
+        previous.setEnabled(APEX.getPlaylist().size() > 1);
+        Track next = APEX.peekNext();
+        int queued = APEX.getQueue().size();
+        upNext.setText(next == null ? "" : "Up next: " + next.getName() + (queued == 0 ? "" : " (" + queued + " queued)"));
+        String timers = APEX.getTimers().describe();
+        timerStatus.setText(timers);
+        timerStatus.setVisible(!timers.isEmpty());
         stop.setEnabled(!stopped);
         playPause.setText(playing ? "Pause" : "Play");
         playPause.setToolTipText(playing ? "Pause the track" : "Play the track");
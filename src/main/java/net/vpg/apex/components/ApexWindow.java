@@ -1,12 +1,15 @@
 package net.vpg.apex.components;
 
+import net.vpg.apex.Apex;
 import net.vpg.apex.Util;
-import net.vpg.apex.core.Resources;
+import net.vpg.apex.core.StartupLog;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 
 public class ApexWindow extends JFrame {
     private static final ApexWindow instance = new ApexWindow();
@@ -24,7 +27,8 @@ public class ApexWindow extends JFrame {
             Util.apply(new JPanel(),
                 buttonPanel -> buttonPanel.setAlignmentX(0),
                 buttonPanel -> buttonPanel.add(ApexControl.search),
-                buttonPanel -> buttonPanel.add(ApexControl.surpriseMe)),
+                buttonPanel -> buttonPanel.add(ApexControl.surpriseMe),
+                buttonPanel -> buttonPanel.add(ApexControl.timer)),
             Box.createVerticalStrut(5),
             Util.apply(new JPanel(),
                 buttonPanel -> buttonPanel.setLayout(new FlowLayout(FlowLayout.CENTER)),
@@ -38,7 +42,13 @@ public class ApexWindow extends JFrame {
         this.setLocationRelativeTo(null);
         this.setResizable(true);
         this.setMinimumSize(new Dimension(500, 400));
-        this.setIconImage(Util.get(() -> ImageIO.read(Resources.get("icon.png"))));
+        this.setIconImage(Util.get(() -> ImageIO.read(Apex.class.getResource("icon.png"))));
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                StartupLog.mark("first frame");
+            }
+        });
         this.pack();
     }
 
@@ -1,7 +1,6 @@
 package net.vpg.apex.components;
 
 import net.vpg.apex.Util;
-import net.vpg.apex.core.Resources;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -20,13 +19,8 @@ public class DownloadPanel extends JPanel {
         this.addFocusListener(new FocusAdapter() {
             @Override
             public void focusGained(FocusEvent e) {
-                ApexControl.lookupTracks.setEnabled(false);
-                ApexControl.downloadAll.setEnabled(false);
                 ApexControl.tracksFound.setVisible(false);
-                ApexControl.tracksFound.setText(Resources.getInstance().getMissingTracks().size() + " more tracks found");
-                ApexControl.lookupTracks.setEnabled(true);
-                ApexControl.downloadAll.setEnabled(true);
-                ApexControl.tracksFound.setVisible(true);
+                ApexControl.lookupTracks(false);
             }
         });
         Util.addBox(this, "North",
@@ -47,6 +41,7 @@ public class DownloadPanel extends JPanel {
                 panel -> panel.add(Box.createVerticalStrut(5)),
                 panel -> panel.add(ApexControl.totalProgressBar)));
         progressBox.setVisible(false);
+        this.add(new JScrollPane(ApexControl.onlineTrackList), "Center");
     }
 
     public static DownloadPanel getInstance() {
@@ -1,68 +1,74 @@
 package net.vpg.apex.components;
 
 import net.vpg.apex.Util;
+import net.vpg.apex.core.DownloadScheduler;
 import net.vpg.apex.core.OnlineTrack;
 import net.vpg.apex.core.Resources;
 
-import java.io.IOException;
+import javax.swing.*;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static net.vpg.apex.Apex.LOGGER;
 
-public class DownloadTask implements Downloader.EventListener {
-    public static ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+// Downloads every track through the download scheduler and shows the progress of all of them
+public class DownloadTask {
+    private static final long UPDATE_INTERVAL = 50;
     private final long totalSize;
     private final List<OnlineTrack> tracks;
-    private final Runnable onEachFileDownloaded;
-    private int downloaded;
-    private int index;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicInteger remaining;
+    private final AtomicLong lastUpdate = new AtomicLong();
 
-    public DownloadTask(List<OnlineTrack> tracks, Runnable onEachFileDownloaded) {
+    public DownloadTask(List<OnlineTrack> tracks) {
         this.tracks = tracks;
-        this.onEachFileDownloaded = onEachFileDownloaded;
-        this.downloaded = 0;
-        this.index = -1;
+        this.remaining = new AtomicInteger(tracks.size());
         this.totalSize = tracks.stream().mapToLong(OnlineTrack::getSize).sum();
         DownloadPanel.getInstance().showDownload();
-        downloadNext();
+        if (tracks.isEmpty()) {
+            finish();
+            return;
+        }
+        DownloadScheduler downloads = Resources.getInstance().getDownloads();
+        for (OnlineTrack track : tracks) {
+            downloads.submit(track, this::progress).whenComplete((v, e) -> {
+                if (e != null) {
+                    LOGGER.error("Unable to download " + track.name, e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    finish();
+                }
+            });
+        }
     }
 
-    public void downloadNext() {
-        executor.execute(() -> {
-            index++;
-            if (index == tracks.size()) {
-                DownloadPanel.getInstance().hideDownload();
-                ApexControl.lookupTracks.setEnabled(true);
-                ApexControl.downloadAll.setEnabled(true);
-                onEachFileDownloaded.run();
-                return;
-            }
-            OnlineTrack track = tracks.get(index);
-            try {
-                Resources res = Resources.getInstance();
-                Downloader.download(res.getBaseDownloadUrl() + res.getAdditionalRes() + "/" + track.name, this);
-            } catch (IOException e) {
-                LOGGER.error("Encountered an unexpected uncaught exception:", e);
-            }
-            onEachFileDownloaded.run();
+    private void finish() {
+        SwingUtilities.invokeLater(() -> {
+            DownloadPanel.getInstance().hideDownload();
+            ApexControl.lookupTracks.setEnabled(true);
+            ApexControl.downloadAll.setEnabled(true);
         });
     }
 
-    @Override
-    public void progress(Downloader.Event e) {
-        OnlineTrack track = tracks.get(index);
-        downloaded += e.bytesRead;
-        int fileProgress = (int) (e.totalBytesRead * 100 / track.size);
-        int totalProgress = (int) (downloaded * 100 / totalSize);
-        ApexControl.fileProgressText.setText("Downloading " + track.name + " | " + Util.bytesToString(e.totalBytesRead) + "/" + Util.bytesToString(track.size));
-        ApexControl.totalProgressText.setText("Total Progress: " + Util.bytesToString(downloaded) + "/" + Util.bytesToString(totalSize));
-        ApexControl.fileProgressBar.setValue(fileProgress);
-        ApexControl.fileProgressBar.setString(fileProgress + "%");
-        ApexControl.totalProgressBar.setValue(totalProgress);
-        ApexControl.totalProgressBar.setString(totalProgress + "%");
-        if (e.type == Downloader.DONE) {
-            downloadNext();
+    private void progress(OnlineTrack track, long bytes, long fileTotal) {
+        long total = downloaded.addAndGet(bytes);
+        // with many downloads in flight, only one of them repaints every few frames
+        long now = System.currentTimeMillis();
+        long last = lastUpdate.get();
+        if (fileTotal != track.size && (now - last < UPDATE_INTERVAL || !lastUpdate.compareAndSet(last, now))) {
+            return;
         }
+        int fileProgress = (int) (fileTotal * 100 / track.size);
+        int totalProgress = (int) (total * 100 / totalSize);
+        int done = tracks.size() - remaining.get();
+        SwingUtilities.invokeLater(() -> {
+            ApexControl.fileProgressText.setText("Downloading " + track.name + " | " + Util.bytesToString(fileTotal) + "/" + Util.bytesToString(track.size));
+            ApexControl.totalProgressText.setText("Total Progress: " + Util.bytesToString(total) + "/" + Util.bytesToString(totalSize) + " | " + done + "/" + tracks.size() + " files");
+            ApexControl.fileProgressBar.setValue(fileProgress);
+            ApexControl.fileProgressBar.setString(fileProgress + "%");
+            ApexControl.totalProgressBar.setValue(totalProgress);
+            ApexControl.totalProgressBar.setString(totalProgress + "%");
+        });
     }
 }
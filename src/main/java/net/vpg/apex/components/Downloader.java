@@ -36,7 +36,7 @@ public class Downloader {
                     bytesRead += len;
                     output.write(buffer, 0, len);
                     long timeTaken = System.currentTimeMillis() - startingTime;
-                    long speed = bytesRead * 100 / timeTaken;
+                    long speed = bytesRead * 100 / Math.max(1, timeTaken);
                     if (listener != null) {
                         listener.progress(new Event(file, startingTime, timeTaken, len, bytesRead, speed, bytesRead == len ? STARTED : IN_PROGRESS));
                     }
@@ -44,9 +44,9 @@ public class Downloader {
             }
         }
         long timeTaken = System.currentTimeMillis() - startingTime;
-        long speed = bytesRead * 100 / timeTaken;
+        long speed = bytesRead * 100 / Math.max(1, timeTaken);
         if (listener != null) {
-            listener.progress(new Event(file, startingTime, timeTaken, len, bytesRead, speed, DONE));
+            listener.progress(new Event(file, startingTime, timeTaken, 0, bytesRead, speed, DONE));
         }
         return file;
     }
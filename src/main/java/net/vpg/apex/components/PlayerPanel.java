@@ -3,6 +3,7 @@ package net.vpg.apex.components;
 import net.vpg.apex.Apex;
 import net.vpg.apex.Util;
 
+import javax.sound.sampled.LineEvent;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.awt.*;
@@ -15,6 +16,13 @@ public class PlayerPanel extends JPanel {
     private static final PlayerPanel instance = new PlayerPanel();
 
     private PlayerPanel() {
+        VisualizerPanel visualizer = new VisualizerPanel(Apex.APEX.getClip().getMixer().getTap(), Apex.AUDIO_FORMAT.getSampleRate());
+        // the visualizer sleeps once nothing plays and wakes up with the clip
+        Apex.APEX.getClip().addLineListener(event -> {
+            if (event.getType() == LineEvent.Type.START) {
+                SwingUtilities.invokeLater(visualizer::wake);
+            }
+        });
         this.setName("Player");
         this.setBorder(new EmptyBorder(15, 15, 0, 15));
         this.setLayout(new BorderLayout());
@@ -22,7 +30,18 @@ public class PlayerPanel extends JPanel {
             ApexControl.trackListPane = new JScrollPane(
                 Util.apply(ApexControl.trackList = new JList<>(ApexControl.trackListModel),
                     list -> list.setVisibleRowCount(7),
+                    list -> list.setComponentPopupMenu(Util.apply(new JPopupMenu(),
+                        menu -> menu.add(Util.apply(new JMenuItem("Play Next"), item -> item.addActionListener(e -> Apex.APEX.takeAction(9)))),
+                        menu -> menu.add(Util.apply(new JMenuItem("Add to Queue"), item -> item.addActionListener(e -> Apex.APEX.takeAction(10)))))),
                     list -> list.addMouseListener(new MouseAdapter() {
+                        @Override
+                        public void mousePressed(MouseEvent e) {
+                            // the popup acts on the row under the cursor
+                            if (SwingUtilities.isRightMouseButton(e)) {
+                                ApexControl.trackList.setSelectedIndex(ApexControl.trackList.locationToIndex(e.getPoint()));
+                            }
+                        }
+
                         @Override
                         public void mouseClicked(MouseEvent e) {
                             if (e.getClickCount() == 2 && e.getButton() == MouseEvent.BUTTON1) {
@@ -46,7 +65,12 @@ public class PlayerPanel extends JPanel {
             ApexControl.trackId,
             Box.createVerticalStrut(5),
             ApexControl.trackIndex,
-            Box.createVerticalStrut(5));
+            Box.createVerticalStrut(5),
+            ApexControl.upNext,
+            Box.createVerticalStrut(5),
+            ApexControl.timerStatus,
+            Box.createVerticalStrut(5),
+            visualizer);
     }
 
     public static PlayerPanel getInstance() {
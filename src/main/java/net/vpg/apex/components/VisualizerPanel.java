@@ -0,0 +1,85 @@
+package net.vpg.apex.components;
+
+import net.vpg.apex.core.AudioTap;
+import net.vpg.apex.core.SpectrumAnalyzer;
+
+import javax.swing.*;
+import java.awt.*;
+
+public class VisualizerPanel extends JComponent {
+    private static final int BANDS = 32;
+    private static final int METER_WIDTH = 8;
+    private final SpectrumAnalyzer analyzer;
+    private final Timer timer;
+
+    public VisualizerPanel(AudioTap tap, float sampleRate) {
+        analyzer = new SpectrumAnalyzer(tap, sampleRate, BANDS);
+        // analysis runs on the EDT at the display refresh rate, never on the audio thread
+        timer = new Timer(1000 / refreshRate(), e -> {
+            if (analyzer.update()) {
+                repaint();
+            } else {
+                // nothing left to draw, wake() starts it again
+                ((Timer) e.getSource()).stop();
+            }
+        });
+        timer.setCoalesce(true);
+        setAlignmentX(0);
+        setPreferredSize(new Dimension(300, 60));
+        setMinimumSize(new Dimension(100, 40));
+        setMaximumSize(new Dimension(Integer.MAX_VALUE, 60));
+        setToolTipText("Spectrum and output level");
+    }
+
+    private static int refreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : Math.min(rate, 240);
+        } catch (HeadlessException e) {
+            return 60;
+        }
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        timer.start();
+    }
+
+    public void wake() {
+        if (isDisplayable() && !timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics;
+        int width = getWidth();
+        int height = getHeight();
+        Color color = UIManager.getColor("ProgressBar.foreground");
+        g.setColor(color == null ? getForeground() : color);
+        float[] bands = analyzer.getBands();
+        int spectrumWidth = width - 3 * METER_WIDTH;
+        for (int i = 0; i < bands.length; i++) {
+            int x = i * spectrumWidth / bands.length;
+            int barWidth = Math.max(1, (i + 1) * spectrumWidth / bands.length - x - 1);
+            int barHeight = Math.round(bands[i] * height);
+            g.fillRect(x, height - barHeight, barWidth, barHeight);
+        }
+        paintMeter(g, width - 2 * METER_WIDTH, height, analyzer.getPeak());
+        paintMeter(g, width - METER_WIDTH, height, analyzer.getRms());
+    }
+
+    private void paintMeter(Graphics2D g, int x, int height, float level) {
+        int meterHeight = Math.round(Math.min(1, level) * height);
+        g.drawRect(x + 1, 0, METER_WIDTH - 3, height - 1);
+        g.fillRect(x + 1, height - meterHeight, METER_WIDTH - 2, meterHeight);
+    }
+}
@@ -2,30 +2,74 @@ package net.vpg.apex.core;
 
 import net.vpg.apex.Util;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.sound.sampled.*;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+// A voice of the ApexMixer, which pulls its audio through render() on the mixer thread. Decoding and seeking run on
+// the decode executor, a little at a time to stay a couple of seconds ahead of playback, render() only copies what is
+// decoded already and plays silence when it runs out. The decoded audio is kept so that loops replay it.
 public class ApexClip implements Clip {
-    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2, new ApexThreadFactory("Player"));
-    private final List<LineListener> listeners = new ArrayList<>();
-    protected SourceDataLine sourceDataLine;
+    // compressed bytes a download has to be ahead of playback before more of it is decoded, a few seconds of Vorbis
+    private static final int STREAM_AHEAD = 32768;
+    private static final Logger logger = LoggerFactory.getLogger(ApexClip.class);
+    private static final int DECODE_AHEAD_SECONDS = 2;
+    private static final int DECODE_CHUNKS_PER_SECOND = 4;
+    private final List<LineListener> listeners = new CopyOnWriteArrayList<>();
+    private final PlaybackMetrics metrics = PlaybackMetrics.get();
+    private final ApexMixer mixer;
     private AudioFormat format;
     private AudioInputStream stream;
+    private Codec codec; // with the source, set when opened from a track so the clip can seek in it again
+    private TrackSource source;
     private byte[] data;
+    private int dataLength = 0; // bytes of data decoded so far, data itself grows ahead of it
+    private int dataStart = 0; // frame of the first byte of data, non zero when resumed in the middle of a track
     private int framePosition = 0;
     private int loopStart = 0;
     private int loopEnd = -1;
     private int loopCount = 0;
+    private int loopsPlayed = 0;
     private boolean open = false;
-    private boolean active = false;
+    private volatile boolean active = false;
+    private volatile long switchStarted = 0;
+    private volatile float gain = 1;
+    // multiplies the gain, ramped frame by frame by fade() as the clip renders
+    private float fadeLevel = 1;
+    private float fadeTarget = 1;
+    private float fadeStep = 0;
+    private int fadeFrames = 0;
+    private boolean stopAfterFade = false;
+    // a decode task is queued or running, tasks run one at a time under decodeLock
+    private boolean decoding = false;
+    // the codec is still to be opened at framePosition by the decoder, nothing plays until it is
+    private boolean seekPending = false;
+    private final Object decodeLock = new Object();
+    // bumped whenever the stream and data are replaced, so that a decode of the old ones is thrown away
+    private int generation = 0;
+    // the audio from the loop start up to dataStart, decoded for a track resumed after its loop start and put in
+    // front of data once complete, so the first loop does not have to seek
+    private AudioInputStream preStream;
+    private byte[] preData;
+    private int preLength;
+    private int preStart;
+
+    public ApexClip() {
+        this(ApexMixer.get());
+    }
+
+    public ApexClip(ApexMixer mixer) {
+        this.mixer = mixer;
+    }
 
     @Override
     public void open() {
         if (data != null)
-            open(format, data, 0, data.length);
+            open(format, data, 0, dataLength);
         else if (stream != null)
             open(stream);
         else
@@ -33,48 +77,74 @@ public class ApexClip implements Clip {
     }
 
     @Override
-    public void open(AudioInputStream stream) {
-        this.stream = stream;
-        data = null;
+    public synchronized void open(AudioInputStream stream) {
+        if (!stream.getFormat().matches(mixer.getFormat())) {
+            stream = AudioSystem.getAudioInputStream(mixer.getFormat(), stream);
+        }
+        if (stream != this.stream) {
+            closeStream();
+        }
         open0(stream.getFormat());
+        this.stream = stream;
+        requestDecode();
+    }
+
+    private void closeStream() {
+        if (stream != null) {
+            Util.run(stream::close);
+            stream = null;
+        }
     }
 
     public void open(Track track, AudioFormat format) {
+        open(track, format, 0);
+    }
+
+    public void open(Track track, AudioFormat format, int startFrame) {
+        if (PlaybackMetrics.ENABLED) {
+            switchStarted = System.nanoTime();
+        }
         Util.run(() -> {
-            open(AudioSystem.getAudioInputStream(format, AudioSystem.getAudioInputStream(track.getFile())));
+            openAt(track.getCodec(), track.getSource(), format, startFrame);
             setLoopPoints(track.getLoopStart(), track.getLoopEnd());
+            setGain(track.getNormalizationGain());
             loop(Clip.LOOP_CONTINUOUSLY);
         });
     }
 
+    // a track resumed in the middle is opened by the decoder, as FLAC and WAV decode everything before the frame
+    private synchronized void openAt(Codec codec, TrackSource source, AudioFormat format, int startFrame) throws Exception {
+        if (startFrame == 0) {
+            open(codec.open(source, format, 0));
+        } else {
+            closeStream();
+            open0(format);
+            seekPending = true;
+        }
+        this.codec = codec;
+        this.source = source;
+        dataStart = framePosition = startFrame;
+        requestDecode();
+    }
+
     @Override
-    public void open(AudioFormat format, byte[] data, int offset, int bufferSize) {
+    public synchronized void open(AudioFormat format, byte[] data, int offset, int bufferSize) {
         if (bufferSize % format.getFrameSize() != 0)
             throw new IllegalArgumentException(String.format("Buffer size (%d) does not represent an integral number of sample frames (%d)", bufferSize, format.getFrameSize()));
-        this.data = Arrays.copyOfRange(data, offset, offset + bufferSize);
+        byte[] copy = Arrays.copyOfRange(data, offset, offset + bufferSize);
+        closeStream();
         open0(format);
+        this.data = copy;
+        dataLength = bufferSize;
     }
 
     private void open0(AudioFormat format) {
+        if (!format.matches(mixer.getFormat()))
+            throw new IllegalArgumentException("Clip format " + format + " does not match the mixer format " + mixer.getFormat());
         reset();
         open = true;
         this.format = format;
-        if (sourceDataLine == null) {
-            Mixer defaultMixer = AudioSystem.getMixer(null);
-            sourceDataLine = Arrays.stream(defaultMixer.getSourceLineInfo())
-                .filter(lineInfo -> lineInfo.getLineClass() == SourceDataLine.class)
-                .map(SourceDataLine.Info.class::cast)
-                .map(info -> Util.get(() -> (SourceDataLine) defaultMixer.getLine(info)))
-                .findFirst()
-                .orElseGet(() -> Util.get(() -> AudioSystem.getSourceDataLine(format)));
-        }
-        if (!sourceDataLine.isOpen()) {
-            int bufferSize = (int) (format.getFrameSize() * format.getFrameRate() * 0.1);
-            Util.run(() -> sourceDataLine.open(format, bufferSize));
-        }
-        if (!sourceDataLine.isActive()) {
-            sourceDataLine.start();
-        }
+        mixer.open();
     }
 
     @Override
@@ -82,39 +152,50 @@ public class ApexClip implements Clip {
         if (!open || active)
             return;
         active = true;
-        executor.execute(this::playAudio);
+        mixer.add(this);
         sendEvent(new LineEvent(this, LineEvent.Type.START, framePosition));
     }
 
     @Override
-    public void stop() {
+    public synchronized void stop() {
         if (!active)
             return;
         active = false;
-        sourceDataLine.drain();
+        mixer.remove(this);
         sendEvent(new LineEvent(this, LineEvent.Type.STOP, framePosition));
     }
 
     @Override
-    public void close() {
+    public synchronized void close() {
         if (!open)
             return;
         long pos = framePosition;
-        data = null;
+        closeStream();
         format = null;
         open = false;
         active = false;
+        mixer.remove(this);
         reset();
-        sourceDataLine.drain();
-        sourceDataLine.close();
         sendEvent(new LineEvent(this, LineEvent.Type.CLOSE, pos));
     }
 
     private void reset() {
+        generation++;
+        seekPending = false;
+        closePreRoll();
+        codec = null;
+        source = null;
+        data = null;
+        dataLength = 0;
         loopStart = 0;
         loopEnd = -1;
         framePosition = 0;
+        dataStart = 0;
         loopCount = 0;
+        loopsPlayed = 0;
+        fadeLevel = 1;
+        fadeFrames = 0;
+        stopAfterFade = false;
     }
 
     @Override
@@ -132,7 +213,7 @@ public class ApexClip implements Clip {
     }
 
     @Override
-    public void setLoopPoints(int start, int end) {
+    public synchronized void setLoopPoints(int start, int end) {
         if (end != AudioSystem.NOT_SPECIFIED && end < start)
             throw new IllegalArgumentException("Invalid loop points: " + start + " - " + end);
         loopStart = start;
@@ -140,7 +221,7 @@ public class ApexClip implements Clip {
     }
 
     @Override
-    public void loop(int count) {
+    public synchronized void loop(int count) {
         loopCount = count;
     }
 
@@ -161,7 +242,7 @@ public class ApexClip implements Clip {
 
     @Override
     public int getFrameLength() {
-        return data.length / format.getFrameSize();
+        return decodedFrames();
     }
 
     @Override
@@ -171,7 +252,7 @@ public class ApexClip implements Clip {
 
     @Override
     public int available() {
-        return 0;
+        return open ? mixer.available() : 0;
     }
 
     @Override
@@ -184,7 +265,7 @@ public class ApexClip implements Clip {
 
     @Override
     public int getBufferSize() {
-        return data.length;
+        return dataLength;
     }
 
     @Override
@@ -198,13 +279,47 @@ public class ApexClip implements Clip {
     }
 
     @Override
-    public void setFramePosition(int frames) {
+    public synchronized void setFramePosition(int frames) {
         framePosition = frames;
     }
 
     @Override
     public float getLevel() {
-        return AudioSystem.NOT_SPECIFIED;
+        return active ? mixer.getTap().getRms() : 0;
+    }
+
+    // times playback jumped from the loop end back to the loop start since the clip was opened
+    public int getLoopsPlayed() {
+        return loopsPlayed;
+    }
+
+    public void setLoopsPlayed(int loopsPlayed) {
+        this.loopsPlayed = loopsPlayed;
+    }
+
+    // true once the clip played past its last loop to the end of the track
+    public synchronized boolean isAtEnd() {
+        return open && stream == null && !seekPending && loopCount == 0 && framePosition >= decodedFrames();
+    }
+
+    // ramps the level from one value to another over the given number of frames, counted as they are rendered, so
+    // the ramp lands on the same sample however the mixer periods fall. A fade that stops pauses the clip when done
+    public synchronized void fade(float from, float to, int frames, boolean stop) {
+        fadeLevel = from;
+        fadeTarget = to;
+        fadeFrames = Math.max(1, frames);
+        fadeStep = (to - from) / fadeFrames;
+        stopAfterFade = stop;
+    }
+
+    public synchronized void cancelFade() {
+        fadeLevel = 1;
+        fadeFrames = 0;
+        stopAfterFade = false;
+    }
+
+    public ApexMixer getMixer() {
+        return mixer;
     }
 
     @Override
@@ -242,54 +357,373 @@ public class ApexClip implements Clip {
         return new DataLine.Info(ApexClip.class, format);
     }
 
-    private void playAudio() {
-        int frameRate = (int) format.getFrameRate();
+    void activate() {
+        active = true;
+    }
+
+    // mixer thread only, adds up to the given number of frames to the mix and returns how many were rendered
+    synchronized int render(int[] mix, int frames) {
+        if (!active) {
+            return 0;
+        }
         int frameSize = format.getFrameSize();
-        while (active) {
-            readAudio(frameRate * frameSize);
-            int frameLength = getFrameLength();
+        int channels = format.getChannels();
+        int rendered = 0;
+        while (active && rendered < frames) {
+            if (seekPending) {
+                // the decoder is still opening the track
+                rendered = frames;
+                break;
+            }
+            if (framePosition < dataStart && codec == null) {
+                // the audio before it can no longer be decoded, playback goes on from the first frame there is
+                framePosition = dataStart;
+            }
+            int frameLength = decodedFrames();
             int limit = loopEnd > frameLength || loopEnd == -1 || loopCount == 0 ? frameLength : loopEnd;
-            int len = Math.min(limit - framePosition, frameRate / 20); // push at most 50 ms of audio
-            sourceDataLine.write(data, framePosition * frameSize, len * frameSize);
-            framePosition += len;
-            if (framePosition == limit) {
-                if (loopCount != 0) {
-                    if (framePosition != loopEnd && stream != null) {
-                        continue;
-                    }
-                    framePosition = loopStart;
-                    if (loopCount != LOOP_CONTINUOUSLY)
-                        loopCount--;
-                    continue;
+            if (framePosition >= dataStart && framePosition < limit) {
+                int len = Math.min(limit - framePosition, frames - rendered);
+                if (stopAfterFade) {
+                    len = Math.min(len, fadeFrames);
+                }
+                add(mix, rendered * channels, (framePosition - dataStart) * frameSize, len, channels);
+                framePosition += len;
+                rendered += len;
+                if (stopAfterFade && fadeFrames == 0) {
+                    // faded out, the next start plays on from here at the full level
+                    cancelFade();
+                    active = false;
+                    sendEvent(new LineEvent(this, LineEvent.Type.STOP, framePosition));
+                }
+            } else if (framePosition >= dataStart && loopCount != 0 && (limit == loopEnd || stream == null)
+                && Math.max(loopStart, dataStart) < limit) {
+                framePosition = loopStart;
+                loopsPlayed++;
+                if (loopCount != LOOP_CONTINUOUSLY)
+                    loopCount--;
+            } else if (framePosition >= dataStart && stream == null) {
+                active = false;
+                sendEvent(new LineEvent(this, LineEvent.Type.STOP, framePosition));
+            } else {
+                // the decoder has not caught up or is seeking, the rest of the period is silence
+                rendered = frames;
+            }
+        }
+        if (active && needsDecode()) {
+            requestDecode();
+        }
+        return rendered;
+    }
+
+    // mixer thread only, called once the mix containing this clip was written to the line
+    void written(long time) {
+        long started = switchStarted;
+        if (started != 0) {
+            metrics.recordTrackSwitch(time - started);
+            switchStarted = 0;
+        }
+    }
+
+    public float getGain() {
+        return gain;
+    }
+
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    private int decodedFrames() {
+        return dataStart + dataLength / format.getFrameSize();
+    }
+
+    private int decodeAheadFrames() {
+        return (int) format.getFrameRate() * DECODE_AHEAD_SECONDS;
+    }
+
+    // whether the decoder has something to do: seek back, keep ahead of playback or decode the audio before a loop
+    private boolean needsDecode() {
+        if (!open) {
+            return false;
+        }
+        if (framePosition < dataStart || seekPending) {
+            return codec != null;
+        }
+        if (stream != null && decodedFrames() - framePosition < decodeAheadFrames() && isDownloaded()) {
+            return true;
+        }
+        return needsPreRoll();
+    }
+
+    // a decoder reading a stream that is still downloading would wait for it, it is asked again next period instead
+    private boolean isDownloaded() {
+        return !(source instanceof StreamingSource) || ((StreamingSource) source).isBuffered(STREAM_AHEAD);
+    }
+
+    private boolean needsPreRoll() {
+        return codec != null && loopCount != 0 && loopStart < dataStart && isDownloaded();
+    }
+
+    private void requestDecode() {
+        if (!decoding && needsDecode()) {
+            decoding = true;
+            ApexExecutors.get().getDecode().execute(this::decode);
+        }
+    }
+
+    private void decode() {
+        synchronized (decodeLock) {
+            try {
+                while (decodeStep()) {
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    decoding = false;
+                    failed(generation, e);
                 }
-                if (stream == null) {
+            }
+        }
+    }
+
+    // decodes on the calling thread until the decoder is as far ahead as it gets, for benchmarks
+    void decodeBlocking() {
+        decode();
+    }
+
+    // one chunk of decoding, false when there is nothing more to do for now. The step is picked under the lock and
+    // run outside it, its result is only kept if the clip was not reopened meanwhile
+    private boolean decodeStep() {
+        Runnable step;
+        synchronized (this) {
+            if (!needsDecode()) {
+                decoding = false;
+                return false;
+            }
+            int generation = this.generation;
+            if (framePosition < dataStart || seekPending) {
+                Codec codec = this.codec;
+                TrackSource source = this.source;
+                int frame = framePosition;
+                step = () -> seek(generation, codec, source, frame);
+            } else if (stream != null && decodedFrames() - framePosition < decodeAheadFrames() && isDownloaded()) {
+                AudioInputStream stream = this.stream;
+                byte[] data = this.data;
+                int length = dataLength;
+                step = () -> append(generation, stream, data, length);
+            } else {
+                step = () -> preRoll(generation);
+            }
+        }
+        step.run();
+        return true;
+    }
+
+    // the position lies before the decoded audio or the track was not opened yet, decoding starts over from there
+    private void seek(int generation, Codec codec, TrackSource source, int frame) {
+        AudioInputStream opened;
+        try {
+            opened = codec.open(source, mixer.getFormat(), frame);
+        } catch (Exception e) {
+            failed(generation, e);
+            return;
+        }
+        synchronized (this) {
+            if (generation != this.generation) {
+                Util.run(opened::close);
+                return;
+            }
+            closeStream();
+            closePreRoll();
+            stream = opened;
+            data = null;
+            dataLength = 0;
+            dataStart = frame;
+            seekPending = false;
+        }
+    }
+
+    private void append(int generation, AudioInputStream stream, byte[] data, int length) {
+        AudioFormat format = mixer.getFormat();
+        int end = length + (int) format.getFrameRate() / DECODE_CHUNKS_PER_SECOND * format.getFrameSize();
+        long start = PlaybackMetrics.ENABLED ? System.nanoTime() : 0;
+        if (data == null || end > data.length) {
+            // sized for the whole stream when its length is known, doubled otherwise, so the audio is copied rarely.
+            // The copy is new, render() keeps reading the old array until it is swapped in
+            long frames = stream.getFrameLength();
+            long expected = frames == AudioSystem.NOT_SPECIFIED ? 0 : frames * format.getFrameSize();
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(end, data == null ? expected : data.length * 2L));
+            data = data == null ? new byte[capacity] : Arrays.copyOf(data, capacity);
+        }
+        boolean ended = false;
+        try {
+            while (length < end) {
+                int read = stream.read(data, length, end - length);
+                if (read == -1) {
+                    ended = true;
                     break;
                 }
+                length += read;
             }
+        } catch (Exception e) {
+            failed(generation, e);
+            return;
+        }
+        synchronized (this) {
+            if (generation != this.generation) {
+                return;
+            }
+            this.data = data;
+            dataLength = length;
+            if (ended) {
+                closeStream();
+            }
+        }
+        if (PlaybackMetrics.ENABLED) {
+            metrics.recordDecode(System.nanoTime() - start, length);
         }
     }
 
-    private void readAudio(int bytes) {
-        if (stream == null) return;
-        Util.run(() -> {
-            byte[] buffer = new byte[bytes];
-            int totalRead = 0;
-            while (totalRead < bytes) {
-                int read = stream.read(buffer, totalRead, bytes - totalRead);
+    // decodes the next chunk of the audio from the loop start up to dataStart, put in front of data once complete
+    private void preRoll(int generation) {
+        AudioFormat format = mixer.getFormat();
+        AudioInputStream stream;
+        byte[] pre;
+        int length;
+        int start;
+        Codec codec;
+        TrackSource source;
+        synchronized (this) {
+            if (generation != this.generation || this.codec == null) {
+                return;
+            }
+            stream = preStream;
+            pre = preData;
+            length = preLength;
+            start = preStart;
+            codec = this.codec;
+            source = this.source;
+            if (stream == null) {
+                // the loop points may have moved since the step was picked
+                if (loopStart >= dataStart) {
+                    return;
+                }
+                start = loopStart;
+                pre = new byte[(dataStart - start) * format.getFrameSize()];
+                length = 0;
+            }
+        }
+        try {
+            if (stream == null) {
+                stream = codec.open(source, format, start);
+            }
+            int end = Math.min(pre.length, length + (int) format.getFrameRate() / DECODE_CHUNKS_PER_SECOND * format.getFrameSize());
+            while (length < end) {
+                int read = stream.read(pre, length, end - length);
                 if (read == -1) {
-                    stream = null;
+                    // shorter than the frame it was resumed at, the rest stays silent
+                    length = pre.length;
                     break;
                 }
-                totalRead += read;
+                length += read;
+            }
+        } catch (Exception e) {
+            if (stream != null) {
+                Util.run(stream::close);
+            }
+            failed(generation, e);
+            return;
+        }
+        byte[] data;
+        int dataLength;
+        synchronized (this) {
+            if (generation != this.generation || preStream != null && preStream != stream) {
+                Util.run(stream::close);
+                return;
             }
-            if (data == null) {
-                data = buffer;
+            if (length < pre.length) {
+                preStream = stream;
+                preData = pre;
+                preLength = length;
+                preStart = start;
                 return;
             }
-            byte[] merged = new byte[data.length + totalRead];
-            System.arraycopy(data, 0, merged, 0, data.length);
-            System.arraycopy(buffer, 0, merged, data.length, totalRead);
-            data = merged;
-        });
+            data = this.data;
+            dataLength = this.dataLength;
+        }
+        Util.run(stream::close);
+        byte[] joined = Arrays.copyOf(pre, pre.length + (data == null ? 0 : data.length));
+        if (data != null) {
+            System.arraycopy(data, 0, joined, pre.length, dataLength);
+        }
+        synchronized (this) {
+            // data only grows on this thread, so unless the clip was reopened it is still what was copied
+            if (generation != this.generation || this.data != data || this.dataLength != dataLength) {
+                return;
+            }
+            preStream = null;
+            preData = null;
+            preLength = 0;
+            this.data = joined;
+            this.dataLength += pre.length;
+            dataStart = start;
+        }
+    }
+
+    // plays what was decoded, for example when the download of a streamed track failed, and seeks no more
+    private synchronized void failed(int generation, Exception e) {
+        if (generation != this.generation) {
+            return;
+        }
+        logger.warn("Unable to decode " + (source == null ? "the clip" : source.getName()), e);
+        closeStream();
+        closePreRoll();
+        codec = null;
+        seekPending = false;
+    }
+
+    private void closePreRoll() {
+        if (preStream != null) {
+            Util.run(preStream::close);
+        }
+        preStream = null;
+        preData = null;
+        preLength = 0;
+    }
+
+    // 16 bit little endian samples, scaled by the clip gain and summed without clipping, the mixer clips the total
+    private void add(int[] mix, int mixOffset, int offset, int frames, int channels) {
+        if (fadeFrames > 0) {
+            int ramp = Math.min(frames, fadeFrames);
+            addFading(mix, mixOffset, offset, ramp, channels);
+            mixOffset += ramp * channels;
+            offset += ramp * channels * 2;
+            frames -= ramp;
+        }
+        byte[] data = this.data;
+        float gain = this.gain * fadeLevel;
+        int samples = frames * channels;
+        if (gain == 1) {
+            for (int i = 0, j = offset; i < samples; i++, j += 2) {
+                mix[mixOffset + i] += (short) ((data[j] & 0xFF) | (data[j + 1] << 8));
+            }
+            return;
+        }
+        for (int i = 0, j = offset; i < samples; i++, j += 2) {
+            mix[mixOffset + i] += Math.round((short) ((data[j] & 0xFF) | (data[j + 1] << 8)) * gain);
+        }
+    }
+
+    private void addFading(int[] mix, int mixOffset, int offset, int frames, int channels) {
+        byte[] data = this.data;
+        float gain = this.gain;
+        float level = fadeLevel;
+        for (int frame = 0, i = mixOffset, j = offset; frame < frames; frame++) {
+            level += fadeStep;
+            float scale = gain * level;
+            for (int channel = 0; channel < channels; channel++, i++, j += 2) {
+                mix[i] += Math.round((short) ((data[j] & 0xFF) | (data[j + 1] << 8)) * scale);
+            }
+        }
+        fadeFrames -= frames;
+        fadeLevel = fadeFrames == 0 ? fadeTarget : level;
     }
 }
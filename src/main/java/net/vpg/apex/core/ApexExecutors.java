@@ -0,0 +1,167 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Every thread of the application comes from here: a serial main thread for state changes, an I/O executor for
+// blocking downloads and file work (see BlockingExecutors), decoder threads that keep playback fed, a single low
+// priority worker that analyzes the library one track at a time, a low priority CPU pool for the parallel parts of
+// that analysis and dedicated threads for loops that never end, like the audio thread.
+public class ApexExecutors implements ApexExecutorsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(ApexExecutors.class);
+    private static final ApexExecutors instance = new ApexExecutors();
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    private final ScheduledThreadPoolExecutor main;
+    private final ExecutorService io;
+    private final ExecutorService decode;
+    private final ThreadPoolExecutor analysis;
+    private final ForkJoinPool cpu;
+    private final AtomicInteger ioTasks = new AtomicInteger();
+    private final List<Thread> dedicated = new CopyOnWriteArrayList<>();
+
+    private ApexExecutors() {
+        main = new ScheduledThreadPoolExecutor(1, new ApexThreadFactory("Main", Thread.NORM_PRIORITY, true));
+        main.setRemoveOnCancelPolicy(true);
+        io = BlockingExecutors.create("IO");
+        // a clip has at most one decode task at a time, so there are only as many threads as clips playing. They run
+        // above the batch work on the cpu pool, which would otherwise starve playback on a busy machine
+        decode = Executors.newCachedThreadPool(new ApexThreadFactory("Decoder", Thread.NORM_PRIORITY + 2, true));
+        analysis = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            new ApexThreadFactory("Analysis", Thread.MIN_PRIORITY, true));
+        analysis.allowCoreThreadTimeOut(true);
+        // one core is left alone for playback
+        cpu = new ForkJoinPool(Math.max(1, CPUS - 1), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(String.format("Apex CPU Thread: %02d", thread.getPoolIndex() + 1));
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("net.vpg.apex:type=Executors"));
+        } catch (Exception e) {
+            logger.warn("Unable to register executor statistics with JMX", e);
+        }
+    }
+
+    public static ApexExecutors get() {
+        return instance;
+    }
+
+    public ScheduledExecutorService getMain() {
+        return main;
+    }
+
+    public Executor getIo() {
+        return this::executeIo;
+    }
+
+    public ExecutorService getDecode() {
+        return decode;
+    }
+
+    // tracks are analyzed one after the other however large the library, decoding them keeps one core busy at most
+    public ExecutorService getAnalysis() {
+        return analysis;
+    }
+
+    public ForkJoinPool getCpu() {
+        return cpu;
+    }
+
+    private void executeIo(Runnable task) {
+        ioTasks.incrementAndGet();
+        try {
+            io.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    ioTasks.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ioTasks.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public Thread startDedicated(String type, int priority, Runnable task) {
+        Thread thread = new ApexThreadFactory(type, priority, true).newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                dedicated.remove(Thread.currentThread());
+            }
+        });
+        dedicated.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    // a fixed pool for batch jobs that have the machine to themselves, like the command line tools
+    public ExecutorService newWorkers(String type, int threads) {
+        return Executors.newFixedThreadPool(threads, new ApexThreadFactory(type, Thread.NORM_PRIORITY, true));
+    }
+
+    public void shutdown() {
+        main.shutdown();
+        io.shutdown();
+        decode.shutdown();
+        analysis.shutdown();
+        cpu.shutdown();
+        dedicated.forEach(Thread::interrupt);
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        for (ExecutorService executor : List.of(main, io, decode, analysis, cpu)) {
+            try {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public int getMainQueueDepth() {
+        return main.getQueue().size();
+    }
+
+    @Override
+    public int getIoQueueDepth() {
+        return io instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) io).getQueue().size() : 0;
+    }
+
+    @Override
+    public int getIoTasks() {
+        return ioTasks.get();
+    }
+
+    @Override
+    public int getAnalysisQueueDepth() {
+        return analysis.getQueue().size();
+    }
+
+    @Override
+    public long getCpuQueueDepth() {
+        return cpu.getQueuedSubmissionCount() + cpu.getQueuedTaskCount();
+    }
+
+    @Override
+    public int getCpuActiveThreads() {
+        return cpu.getActiveThreadCount();
+    }
+
+    @Override
+    public boolean isIoVirtual() {
+        return BlockingExecutors.isVirtual();
+    }
+}
@@ -0,0 +1,17 @@
+package net.vpg.apex.core;
+
+public interface ApexExecutorsMXBean {
+    int getMainQueueDepth();
+
+    int getIoQueueDepth();
+
+    int getIoTasks();
+
+    int getAnalysisQueueDepth();
+
+    long getCpuQueueDepth();
+
+    int getCpuActiveThreads();
+
+    boolean isIoVirtual();
+}
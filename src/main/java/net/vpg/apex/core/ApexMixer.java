@@ -0,0 +1,165 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import net.vpg.apex.Util;
+
+import javax.sound.sampled.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Software mixer owning the one output line and the one audio thread. Every active ApexClip renders into a 32 bit
+// accumulator with its own gain, the sum is clipped back to 16 bits once, so another voice only costs its own samples.
+public class ApexMixer {
+    private static final ApexMixer instance = new ApexMixer();
+    private final AudioFormat format = Apex.AUDIO_FORMAT;
+    private final List<ApexClip> sources = new CopyOnWriteArrayList<>();
+    private final AudioTap tap = new AudioTap(2048);
+    private final PlaybackMetrics metrics = PlaybackMetrics.get();
+    private final int period = (int) format.getFrameRate() / 50; // mix 20 ms at a time
+    private final int[] mix = new int[period * format.getChannels()];
+    private final byte[] output = new byte[period * format.getFrameSize()];
+    private SourceDataLine line;
+    private Thread thread;
+    private boolean primed = false;
+
+    private ApexMixer() {
+    }
+
+    ApexMixer(SourceDataLine line) {
+        this.line = line;
+    }
+
+    public static ApexMixer get() {
+        return instance;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public AudioTap getTap() {
+        return tap;
+    }
+
+    public int getSourceCount() {
+        return sources.size();
+    }
+
+    public synchronized void open() {
+        if (line == null) {
+            Mixer defaultMixer = AudioSystem.getMixer(null);
+            line = Arrays.stream(defaultMixer.getSourceLineInfo())
+                .filter(lineInfo -> lineInfo.getLineClass() == SourceDataLine.class)
+                .map(SourceDataLine.Info.class::cast)
+                .map(info -> Util.get(() -> (SourceDataLine) defaultMixer.getLine(info)))
+                .findFirst()
+                .orElseGet(() -> Util.get(() -> AudioSystem.getSourceDataLine(format)));
+        }
+        if (!line.isOpen()) {
+            int bufferSize = (int) (format.getFrameSize() * format.getFrameRate() * 0.1);
+            Util.run(() -> line.open(format, bufferSize));
+        }
+        if (!line.isActive()) {
+            line.start();
+        }
+    }
+
+    public int available() {
+        return line == null || !line.isOpen() ? 0 : line.available();
+    }
+
+    void add(ApexClip clip) {
+        open();
+        synchronized (sources) {
+            if (!sources.contains(clip)) {
+                sources.add(clip);
+            }
+            sources.notifyAll();
+        }
+        synchronized (this) {
+            if (thread == null) {
+                thread = ApexExecutors.get().startDedicated("Audio", Thread.MAX_PRIORITY, this::run);
+            }
+        }
+    }
+
+    void remove(ApexClip clip) {
+        sources.remove(clip);
+    }
+
+    // renders the given clips on the calling thread until they end, for benchmarks
+    void playBlocking(ApexClip... clips) {
+        open();
+        for (ApexClip clip : clips) {
+            clip.activate();
+            sources.add(clip);
+        }
+        do {
+            for (ApexClip clip : clips) {
+                clip.decodeBlocking();
+            }
+        } while (mixOnce());
+    }
+
+    private void run() {
+        while (true) {
+            if (sources.isEmpty()) {
+                // drained outside the lock, a clip starting meanwhile must not wait for the line to empty
+                line.drain();
+                tap.silence();
+                primed = false;
+                synchronized (sources) {
+                    while (sources.isEmpty()) {
+                        try {
+                            sources.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+            mixOnce();
+        }
+    }
+
+    private boolean mixOnce() {
+        Arrays.fill(mix, 0);
+        int frames = 0;
+        for (ApexClip source : sources) {
+            frames = Math.max(frames, source.render(mix, period));
+            if (!source.isActive()) {
+                sources.remove(source);
+            }
+        }
+        if (frames == 0) {
+            return !sources.isEmpty();
+        }
+        int samples = frames * format.getChannels();
+        for (int i = 0, j = 0; i < samples; i++, j += 2) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+            output[j] = (byte) sample;
+            output[j + 1] = (byte) (sample >> 8);
+        }
+        write(frames * format.getFrameSize());
+        return true;
+    }
+
+    private void write(int length) {
+        tap.accept(output, 0, length, format.getChannels());
+        if (!PlaybackMetrics.ENABLED) {
+            line.write(output, 0, length);
+            return;
+        }
+        int available = line.available();
+        long start = System.nanoTime();
+        line.write(output, 0, length);
+        long end = System.nanoTime();
+        // an empty line right after waking up is expected, later on it means we fell behind
+        metrics.recordWrite(end - start, available, line.getBufferSize(), primed);
+        primed = true;
+        for (ApexClip source : sources) {
+            source.written(end);
+        }
+    }
+}
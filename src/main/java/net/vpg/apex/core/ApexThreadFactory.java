@@ -5,15 +5,26 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public class ApexThreadFactory implements ThreadFactory {
     private final String type;
+    private final int priority;
+    private final boolean daemon;
     private final AtomicInteger integer = new AtomicInteger(0);
 
     public ApexThreadFactory(String type) {
+        this(type, Thread.NORM_PRIORITY, false);
+    }
+
+    public ApexThreadFactory(String type, int priority, boolean daemon) {
         this.type = type;
+        this.priority = priority;
+        this.daemon = daemon;
     }
 
     @Override
     public Thread newThread(Runnable r) {
         int threadId = integer.incrementAndGet();
-        return new Thread(r, String.format("Apex %s Thread: %s%d", type, threadId < 10 ? "0" : "", threadId));
+        Thread thread = new Thread(r, String.format("Apex %s Thread: %s%d", type, threadId < 10 ? "0" : "", threadId));
+        thread.setPriority(priority);
+        thread.setDaemon(daemon);
+        return thread;
     }
 }
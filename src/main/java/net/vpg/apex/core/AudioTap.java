@@ -0,0 +1,90 @@
+package net.vpg.apex.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Taps the PCM written to the line. The audio thread publishes the latest window through a
+// triple buffer, so neither side ever waits on the other and nothing is allocated per buffer.
+public class AudioTap {
+    private static final int FRESH = 4;
+    private static final int INDEX = 3;
+    private final Frame[] frames;
+    private final AtomicInteger latest = new AtomicInteger(0);
+    private final float[] ring;
+    private int ringPosition = 0;
+    private int back = 1;
+    private int front = 2;
+    private volatile float peak;
+    private volatile float rms;
+
+    public AudioTap(int windowSize) {
+        frames = new Frame[]{new Frame(windowSize), new Frame(windowSize), new Frame(windowSize)};
+        ring = new float[windowSize];
+    }
+
+    // audio thread only, expects 16 bit signed little endian samples
+    public void accept(byte[] data, int offset, int length, int channels) {
+        int frameSize = channels * 2;
+        int frames = length / frameSize;
+        if (frames == 0) {
+            return;
+        }
+        int peak = 0;
+        double sumOfSquares = 0;
+        for (int i = offset, end = offset + frames * frameSize; i < end; ) {
+            int mixed = 0;
+            for (int c = 0; c < channels; c++, i += 2) {
+                int sample = (short) ((data[i] & 0xFF) | (data[i + 1] << 8));
+                peak = Math.max(peak, Math.abs(sample));
+                sumOfSquares += (double) sample * sample;
+                mixed += sample;
+            }
+            ring[ringPosition] = mixed / (channels * 32768f);
+            ringPosition = (ringPosition + 1) % ring.length;
+        }
+        this.peak = peak / 32768f;
+        this.rms = (float) Math.sqrt(sumOfSquares / (frames * channels)) / 32768f;
+        Frame frame = this.frames[back];
+        int tail = ring.length - ringPosition;
+        System.arraycopy(ring, ringPosition, frame.samples, 0, tail);
+        System.arraycopy(ring, 0, frame.samples, tail, ringPosition);
+        frame.peak = this.peak;
+        frame.rms = this.rms;
+        back = latest.getAndSet(back | FRESH) & INDEX;
+    }
+
+    public void silence() {
+        peak = 0;
+        rms = 0;
+    }
+
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getRms() {
+        return rms;
+    }
+
+    public int getWindowSize() {
+        return ring.length;
+    }
+
+    // reader side (single consumer), returns null when nothing was published since the last call
+    public Frame poll() {
+        if ((latest.get() & FRESH) == 0) {
+            return null;
+        }
+        front = latest.getAndSet(front) & INDEX;
+        return frames[front];
+    }
+
+    public static class Frame {
+        public final float[] samples;
+        public float peak;
+        public float rms;
+
+        private Frame(int size) {
+            samples = new float[size];
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.vpg.apex.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Executors for blocking downloads and file work. This is the Java 11 version, a bounded pool of platform threads;
+// the multi-release jar carries a Java 21 version in src/main/java21 that gives every task its own virtual thread.
+public class BlockingExecutors {
+    private static final int THREADS = 8;
+
+    private BlockingExecutors() {
+    }
+
+    public static boolean isVirtual() {
+        return false;
+    }
+
+    static ExecutorService create(String type) {
+        // a full queue pushes the work back onto the submitter instead of growing without bounds
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1024),
+            new ApexThreadFactory(type, Thread.NORM_PRIORITY, true), new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,24 @@
+package net.vpg.apex.core;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.util.List;
+
+// A file format the player can read, registered with Codecs
+public interface Codec {
+    String getName();
+
+    // lower case, without the dot, used for files that can not be probed yet such as remote ones
+    List<String> getExtensions();
+
+    // whether the first bytes of a track, at most Codecs.PROBE_SIZE of them, look like this format
+    boolean probe(byte[] header, int length);
+
+    // {loop start, loop end} in frames, -1 where the file does not say
+    int[] readLoopPoints(TrackSource source) throws IOException;
+
+    // PCM in the given format starting at the given frame, ideally without decoding what lies before it
+    AudioInputStream open(TrackSource source, AudioFormat format, long startFrame) throws IOException, UnsupportedAudioFileException;
+}
@@ -0,0 +1,150 @@
+package net.vpg.apex.core;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Registry of the formats the player reads. Files are recognised by their first few KB rather than their name,
+// the result is kept in the metadata cache so a library scan only reads headers of new or changed files.
+public class Codecs {
+    public static final int PROBE_SIZE = 4096;
+    private static final Codecs instance = new Codecs();
+    private final List<Codec> codecs = new CopyOnWriteArrayList<>(List.of(new VorbisCodec(), new FlacCodec(), new WavCodec()));
+
+    private Codecs() {
+    }
+
+    public static Codecs get() {
+        return instance;
+    }
+
+    public void register(Codec codec) {
+        codecs.add(0, codec);
+    }
+
+    public Codec forName(String name) {
+        return codecs.stream().filter(codec -> codec.getName().equals(name)).findFirst().orElse(null);
+    }
+
+    public Codec forFileName(String fileName) {
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        return codecs.stream().filter(codec -> codec.getExtensions().contains(extension)).findFirst().orElse(null);
+    }
+
+    public Codec probe(File file) {
+        return probe(TrackSource.of(file));
+    }
+
+    public Codec probe(TrackSource source) {
+        byte[] header = new byte[PROBE_SIZE];
+        int length = 0;
+        try (InputStream input = source.openStream()) {
+            for (int read; length < PROBE_SIZE && (read = input.read(header, length, PROBE_SIZE - length)) != -1; ) {
+                length += read;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        for (Codec codec : codecs) {
+            if (codec.probe(header, length)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    // only files that were recognised are recorded, everything else is probed again on the next scan
+    public Codec probe(TrackSource source, MetadataCache cache) {
+        TrackMetadata metadata = cache.find(source);
+        if (metadata != null && metadata.getCodec() != null) {
+            Codec codec = forName(metadata.getCodec());
+            if (codec != null) {
+                return codec;
+            }
+        }
+        Codec codec = probe(source);
+        if (codec != null) {
+            cache.get(source).setCodec(codec.getName());
+            cache.markDirty();
+        }
+        return codec;
+    }
+
+    public AudioInputStream open(File file, AudioFormat format) throws IOException, UnsupportedAudioFileException {
+        return open(TrackSource.of(file), format);
+    }
+
+    public AudioInputStream open(TrackSource source, AudioFormat format) throws IOException, UnsupportedAudioFileException {
+        Codec codec = probe(source);
+        if (codec == null) {
+            throw new UnsupportedAudioFileException("No codec recognises " + source);
+        }
+        return codec.open(source, format, 0);
+    }
+
+    // decodes through the sound SPI and drops frames up to the given one, for codecs that can not seek
+    static AudioInputStream openWithSpi(TrackSource source, AudioFormat format, long startFrame) throws IOException, UnsupportedAudioFileException {
+        // the readers need mark and reset to sniff the format, which only the file overload sets up by itself
+        AudioInputStream stream = source.getFile() != null
+            ? AudioSystem.getAudioInputStream(source.getFile())
+            : AudioSystem.getAudioInputStream(new BufferedInputStream(source.openStream()));
+        AudioFormat decoded = stream.getFormat();
+        if (!decoded.matches(format)) {
+            // decoders only turn their encoding into PCM at the file's own rate, such as 44.1 kHz for CD rips. The
+            // JDK's PCM converter then resamples and remixes that to the requested format
+            boolean pcm = decoded.getEncoding() == AudioFormat.Encoding.PCM_SIGNED || decoded.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED;
+            if (!pcm) {
+                int bits = decoded.getSampleSizeInBits() > 8 ? decoded.getSampleSizeInBits() : 16;
+                stream = AudioSystem.getAudioInputStream(new AudioFormat(decoded.getSampleRate(), bits, decoded.getChannels(), true, false), stream);
+            }
+            stream = AudioSystem.getAudioInputStream(format, stream);
+        }
+        long skip = startFrame * format.getFrameSize();
+        while (skip > 0) {
+            long skipped = stream.skip(skip);
+            if (skipped <= 0) {
+                break;
+            }
+            skip -= skipped;
+        }
+        return stream;
+    }
+
+    // loop points count frames of the file, which plays resampled to the given format when its rate differs
+    static int[] toFormatRate(int[] loopPoints, float rate, AudioFormat format) {
+        if (rate <= 0 || rate == format.getSampleRate()) {
+            return loopPoints;
+        }
+        double scale = format.getSampleRate() / rate;
+        for (int i = 0; i < loopPoints.length; i++) {
+            if (loopPoints[i] != -1) {
+                loopPoints[i] = (int) Math.round(loopPoints[i] * scale);
+            }
+        }
+        return loopPoints;
+    }
+
+    static int readIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    static boolean startsWith(byte[] bytes, int length, int offset, String magic) {
+        if (offset + magic.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (bytes[offset + i] != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,324 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Downloads tracks from a list of mirrors, a few at a time. Each attempt goes to the mirror that has been fastest so
+// far, mirrors that were not measured yet are tried first in the order they were given. A failed attempt backs its
+// mirror off and resumes from the part already downloaded, possibly on another mirror. All downloads share one
+// bandwidth budget, and the files waiting their turn are ordered by priority: play now, then by their place in the
+// up next queue, then in the order they were asked for.
+public class DownloadScheduler {
+    // extra places to download from, comma separated URLs or directories, tried before the default one
+    public static final String MIRRORS = System.getProperty("apex.mirrors", "");
+    // KiB per second for all downloads together, 0 for no limit
+    public static final long BANDWIDTH = Long.getLong("apex.bandwidth", 0);
+    public static final int PLAY_NOW = -1;
+    public static final int BACKGROUND = Integer.MAX_VALUE;
+    private static final Logger logger = LoggerFactory.getLogger(DownloadScheduler.class);
+    private static final int MAX_ACTIVE = 4;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int BUFFER_SIZE = 16384;
+    private final List<Mirror> mirrors;
+    private final Path downloads;
+    private final TokenBucket bandwidth;
+    private final Store store;
+    private final ToIntFunction<String> priority;
+    private final Executor executor;
+    private final PriorityQueue<Request> pending = new PriorityQueue<>();
+    // pending and active requests by file name
+    private final Map<String, Request> requests = new HashMap<>();
+    private long sequence = 0;
+    private int active = 0;
+
+    public DownloadScheduler(List<Mirror> mirrors, Path downloads, long bytesPerSecond, Store store,
+                             ToIntFunction<String> priority, Executor executor) {
+        this.mirrors = List.copyOf(mirrors);
+        this.downloads = downloads;
+        this.bandwidth = new TokenBucket(bytesPerSecond);
+        this.store = store;
+        this.priority = priority;
+        this.executor = executor;
+    }
+
+    public static List<Mirror> parseMirrors(String locations) {
+        List<Mirror> mirrors = new ArrayList<>();
+        for (String location : locations.split(",")) {
+            if (!location.isBlank()) {
+                mirrors.add(Mirror.of(location.strip()));
+            }
+        }
+        return mirrors;
+    }
+
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    // completes once the track is stored, a track that is already on its way shares that download and the listener
+    // hears about it from there on, starting with the bytes downloaded so far
+    public synchronized CompletableFuture<Void> submit(OnlineTrack track, Listener listener) {
+        Request request = requests.get(track.getName());
+        if (request == null) {
+            request = new Request(track, priority.applyAsInt(Util.getId(track.getName())), sequence++);
+            requests.put(track.getName(), request);
+            pending.add(request);
+            dispatch();
+        }
+        if (listener != null) {
+            request.addListener(listener);
+        }
+        return request.future;
+    }
+
+    // the track as it downloads, which is moved to the front and started if it was not on its way yet
+    public synchronized StreamingSource stream(OnlineTrack track) throws IOException {
+        Request request = requests.get(track.getName());
+        if (request == null) {
+            request = new Request(track, PLAY_NOW, sequence++);
+            requests.put(track.getName(), request);
+            pending.add(request);
+        } else {
+            prioritize(track.getName());
+        }
+        if (request.stream == null) {
+            request.stream = new StreamingSource(track, partOf(track.getName()));
+            request.stream.setAvailable(request.progress);
+        }
+        dispatch();
+        return request.stream;
+    }
+
+    // moves a waiting file to the front, false if it is not waiting
+    public synchronized boolean prioritize(String filename) {
+        Request request = requests.get(filename);
+        if (request == null || !pending.remove(request)) {
+            return false;
+        }
+        request.priority = PLAY_NOW;
+        pending.add(request);
+        return true;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private void dispatch() {
+        while (active < MAX_ACTIVE && !pending.isEmpty()) {
+            Request request = pending.poll();
+            active++;
+            executor.execute(() -> run(request));
+        }
+    }
+
+    private void run(Request request) {
+        try {
+            Path part = download(request);
+            TrackSource stored = store.store(request.track.getName(), part);
+            StreamingSource stream = request.getStream();
+            if (stream != null) {
+                stream.complete(stored);
+            }
+            request.future.complete(null);
+        } catch (Exception e) {
+            StreamingSource stream = request.getStream();
+            if (stream != null) {
+                stream.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+            request.future.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                active--;
+                requests.remove(request.track.getName());
+                dispatch();
+            }
+        }
+    }
+
+    private Path download(Request request) throws IOException {
+        OnlineTrack track = request.track;
+        String name = track.getName();
+        Path part = partOf(name);
+        Files.createDirectories(downloads);
+        Set<Mirror> without = new HashSet<>();
+        IOException failure = null;
+        boolean restart = false;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; ) {
+            Mirror mirror = pick(without);
+            if (mirror == null) {
+                break;
+            }
+            long offset = restart || !Files.exists(part) ? 0 : Files.size(part);
+            if (track.getSize() > 0 && offset >= track.getSize()) {
+                // left over from a file that has changed since, start over
+                offset = 0;
+            }
+            restart = false;
+            request.setProgress(offset);
+            long written = 0;
+            long waited = 0;
+            try {
+                long backoff = mirror.getRetryAt() - System.nanoTime();
+                if (backoff > 0) {
+                    TimeUnit.NANOSECONDS.sleep(backoff);
+                }
+                long start = System.nanoTime();
+                try (InputStream input = mirror.open(name, offset);
+                     OutputStream output = Files.newOutputStream(part, CREATE, WRITE, offset == 0 ? TRUNCATE_EXISTING : APPEND)) {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    for (int read; (read = input.read(buffer)) != -1; ) {
+                        waited += bandwidth.acquire(read);
+                        output.write(buffer, 0, read);
+                        written += read;
+                        request.setProgress(offset + written);
+                        request.report(offset + written);
+                    }
+                }
+                if (track.getSize() > 0 && offset + written != track.getSize()) {
+                    // truncated by the next attempt rather than deleted, a stream may be reading the file
+                    restart = true;
+                    throw new IOException(mirror + " sent " + (offset + written) + " of " + track.getSize() + " bytes of " + name);
+                }
+                mirror.succeeded(written, System.nanoTime() - start - waited);
+                return part;
+            } catch (FileNotFoundException e) {
+                without.add(mirror);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download of " + name + " interrupted");
+            } catch (IOException e) {
+                logger.warn("Attempt " + (attempt + 1) + " to download " + name + " from " + mirror + " failed: " + e);
+                mirror.failed();
+                failure = e;
+                attempt++;
+            }
+            if (restart) {
+                // the bytes of a discarded part no longer count
+                request.report(0);
+            }
+        }
+        throw failure != null ? failure : new FileNotFoundException(name + " is not on any mirror");
+    }
+
+    private Path partOf(String filename) {
+        return downloads.resolve(filename + ".part");
+    }
+
+    // the mirror to try next: one that may be used right away if there is one, unmeasured before fastest,
+    // else the one whose back off ends first. null if none of them has the file
+    private Mirror pick(Set<Mirror> without) {
+        long now = System.nanoTime();
+        Mirror best = null;
+        for (Mirror mirror : mirrors) {
+            if (!without.contains(mirror) && (best == null || isBetter(mirror, best, now))) {
+                best = mirror;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetter(Mirror mirror, Mirror than, long now) {
+        boolean ready = mirror.getRetryAt() - now <= 0;
+        boolean thanReady = than.getRetryAt() - now <= 0;
+        if (ready != thanReady) {
+            return ready;
+        }
+        if (!ready) {
+            return mirror.getRetryAt() - than.getRetryAt() < 0;
+        }
+        double throughput = mirror.getThroughput();
+        double thanThroughput = than.getThroughput();
+        if (Double.isNaN(thanThroughput)) {
+            return false;
+        }
+        return Double.isNaN(throughput) || throughput > thanThroughput;
+    }
+
+    @FunctionalInterface
+    public interface Store {
+        // takes over the finished download and returns where it went, see Resources.store
+        TrackSource store(String filename, Path downloaded) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface Listener {
+        // bytes is the change since the last call, negative when a broken part was thrown away; total is the size
+        // of the part so far
+        void progress(OnlineTrack track, long bytes, long total);
+    }
+
+    private static class Request implements Comparable<Request> {
+        private final OnlineTrack track;
+        private final long sequence;
+        private final List<Listener> listeners = new ArrayList<>();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private int priority;
+        // set under the scheduler lock, read by the download
+        private volatile StreamingSource stream;
+        private volatile long progress = 0;
+        // the total last told to the listeners, guarded by the request itself
+        private long reported = 0;
+
+        private Request(OnlineTrack track, int priority, long sequence) {
+            this.track = track;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        // a listener that joins late is told about the bytes it missed, under the same lock as the reports, so the
+        // changes it hears about add up to the total
+        private synchronized void addListener(Listener listener) {
+            listeners.add(listener);
+            if (reported != 0) {
+                listener.progress(track, reported, reported);
+            }
+        }
+
+        private synchronized void report(long total) {
+            if (total == reported) {
+                return;
+            }
+            for (Listener listener : listeners) {
+                listener.progress(track, total - reported, total);
+            }
+            reported = total;
+        }
+
+        private StreamingSource getStream() {
+            return stream;
+        }
+
+        private void setProgress(long bytes) {
+            progress = bytes;
+            StreamingSource stream = this.stream;
+            if (stream != null) {
+                stream.setAvailable(bytes);
+            }
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            return priority != other.priority ? Integer.compare(priority, other.priority) : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package net.vpg.apex.core;
+
+// in-place iterative radix-2 FFT, the tables are built once per size so transforms never allocate
+public class FFT {
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+
+    public FFT(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (Integer.SIZE - bits);
+        }
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(-2 * Math.PI * i / size);
+            sin[i] = Math.sin(-2 * Math.PI * i / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void transform(double[] re, double[] im) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < half; k++) {
+                    int a = start + k;
+                    int b = a + half;
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+
+    public void inverse(double[] re, double[] im) {
+        for (int i = 0; i < size; i++) {
+            im[i] = -im[i];
+        }
+        transform(re, im);
+        for (int i = 0; i < size; i++) {
+            re[i] /= size;
+            im[i] = -im[i] / size;
+        }
+    }
+}
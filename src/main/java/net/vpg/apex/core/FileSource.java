@@ -0,0 +1,52 @@
+package net.vpg.apex.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+class FileSource implements TrackSource {
+    private final File file;
+
+    FileSource(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public long getSize() {
+        return file.length();
+    }
+
+    @Override
+    public long getModified() {
+        return file.lastModified();
+    }
+
+    @Override
+    public SeekableByteChannel open() throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
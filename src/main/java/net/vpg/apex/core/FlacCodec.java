@@ -0,0 +1,95 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Loop points come from the VORBIS_COMMENT metadata block, decoding is left to the jflac sound SPI
+public class FlacCodec implements Codec {
+    private static final int STREAMINFO = 0;
+    private static final int VORBIS_COMMENT = 4;
+
+    @Override
+    public String getName() {
+        return "flac";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("flac");
+    }
+
+    @Override
+    public boolean probe(byte[] header, int length) {
+        return Codecs.startsWith(header, length, 0, "fLaC");
+    }
+
+    @Override
+    public int[] readLoopPoints(TrackSource source) throws IOException {
+        float[] rate = new float[1];
+        List<String> comments = readComments(source, rate);
+        return Codecs.toFormatRate(VorbisCodec.readLoopTags(comments), rate[0], Apex.AUDIO_FORMAT);
+    }
+
+    @Override
+    public AudioInputStream open(TrackSource source, AudioFormat format, long startFrame) throws IOException, UnsupportedAudioFileException {
+        return Codecs.openWithSpi(source, format, startFrame);
+    }
+
+    // walks the metadata blocks following the marker, which end with the one flagged as last. The sample rate is
+    // taken from the STREAMINFO block on the way, which always comes first
+    private static List<String> readComments(TrackSource source, float[] rate) throws IOException {
+        List<String> comments = new ArrayList<>();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(source.openStream()))) {
+            byte[] marker = new byte[4];
+            input.readFully(marker);
+            if (!Codecs.startsWith(marker, 4, 0, "fLaC")) {
+                throw new IOException(source + " is not a FLAC file");
+            }
+            boolean last = false;
+            while (!last) {
+                int blockHeader = input.readInt();
+                last = blockHeader < 0;
+                int type = (blockHeader >>> 24) & 0x7F;
+                int length = blockHeader & 0xFFFFFF;
+                if (type == STREAMINFO && length >= 13) {
+                    byte[] block = new byte[length];
+                    input.readFully(block);
+                    // 20 bits after the block and frame sizes
+                    rate[0] = (block[10] & 0xFF) << 12 | (block[11] & 0xFF) << 4 | (block[12] & 0xFF) >>> 4;
+                    continue;
+                }
+                if (type != VORBIS_COMMENT) {
+                    while (length > 0) {
+                        int skipped = input.skipBytes(length);
+                        if (skipped <= 0) {
+                            throw new IOException("Unexpected end of the FLAC metadata in " + source);
+                        }
+                        length -= skipped;
+                    }
+                    continue;
+                }
+                byte[] block = new byte[length];
+                input.readFully(block);
+                int offset = 4 + Codecs.readIntLE(block, 0);
+                int count = Codecs.readIntLE(block, offset);
+                offset += 4;
+                for (int i = 0; i < count; i++) {
+                    int commentLength = Codecs.readIntLE(block, offset);
+                    comments.add(new String(block, offset + 4, commentLength, StandardCharsets.UTF_8));
+                    offset += 4 + commentLength;
+                }
+                break;
+            }
+        }
+        return comments;
+    }
+}
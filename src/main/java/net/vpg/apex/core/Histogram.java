@@ -0,0 +1,55 @@
+package net.vpg.apex.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// power-of-two buckets, precise enough to tell a 2 ms stall from a 20 ms one without allocating
+public class Histogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    public long getPercentile(double percentile) {
+        long target = (long) Math.ceil(getCount() * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0) {
+                return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+}
@@ -0,0 +1,329 @@
+package net.vpg.apex.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Pull parser reading one JSON token at a time, for documents that are used once from start to end and need not be
+// held as a tree. Only the value being read is kept, so memory stays the same however long the document is,
+// and values can be used while the rest of the document is still arriving.
+public class JsonReader implements Closeable {
+    public enum Token {BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END}
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder text = new StringBuilder();
+    private int position = 0;
+    private int limit = 0;
+    private Token peeked;
+    // whether the string about to be read is the name of an object member, per nesting level
+    private boolean[] inObject = new boolean[32];
+    private boolean[] expectName = new boolean[32];
+    private int depth = 0;
+
+    public JsonReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    public JsonReader(InputStream input) {
+        this(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null) {
+            return peeked;
+        }
+        int c = nextNonSeparator();
+        if (c == -1) {
+            return peeked = Token.END;
+        }
+        switch (c) {
+            case '{':
+                return peeked = Token.BEGIN_OBJECT;
+            case '}':
+                return peeked = Token.END_OBJECT;
+            case '[':
+                return peeked = Token.BEGIN_ARRAY;
+            case ']':
+                return peeked = Token.END_ARRAY;
+            case '"':
+                position--;
+                return peeked = depth > 0 && inObject[depth - 1] && expectName[depth - 1] ? Token.NAME : Token.STRING;
+            case 't':
+            case 'f':
+                position--;
+                return peeked = Token.BOOLEAN;
+            case 'n':
+                position--;
+                return peeked = Token.NULL;
+            default:
+                if (c == '-' || c >= '0' && c <= '9') {
+                    position--;
+                    return peeked = Token.NUMBER;
+                }
+                throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    public boolean hasNext() throws IOException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(true);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        pop(true);
+        valueRead();
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(false);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        pop(false);
+        valueRead();
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readString();
+        expectName[depth - 1] = false;
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        Token token = peek();
+        String value;
+        if (token == Token.STRING) {
+            peeked = null;
+            value = readString();
+        } else if (token == Token.NUMBER || token == Token.BOOLEAN) {
+            peeked = null;
+            value = readLiteral();
+        } else {
+            throw syntaxError("Expected a string but was " + token);
+        }
+        valueRead();
+        return value;
+    }
+
+    public long nextLong() throws IOException {
+        expect(Token.NUMBER);
+        String literal = readLiteral();
+        valueRead();
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(literal);
+            } catch (NumberFormatException notANumber) {
+                throw syntaxError("Expected a number but was " + literal);
+            }
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        String literal = readLiteral();
+        valueRead();
+        if (literal.equals("true")) {
+            return true;
+        }
+        if (literal.equals("false")) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean but was " + literal);
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        String literal = readLiteral();
+        valueRead();
+        if (!literal.equals("null")) {
+            throw syntaxError("Expected null but was " + literal);
+        }
+    }
+
+    // skips the next value, with everything nested in it
+    public void skipValue() throws IOException {
+        int start = depth;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    break;
+                case NAME:
+                    nextName();
+                    break;
+                case STRING:
+                    peeked = null;
+                    readString();
+                    valueRead();
+                    break;
+                case BOOLEAN:
+                    nextBoolean();
+                    break;
+                case NULL:
+                    nextNull();
+                    break;
+                case END:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    peeked = null;
+                    readLiteral();
+                    valueRead();
+            }
+        } while (depth > start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token token = peek();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but was " + token);
+        }
+        peeked = null;
+    }
+
+    private void push(boolean object) {
+        if (depth == inObject.length) {
+            inObject = Arrays.copyOf(inObject, depth * 2);
+            expectName = Arrays.copyOf(expectName, depth * 2);
+        }
+        inObject[depth] = object;
+        expectName[depth] = object;
+        depth++;
+    }
+
+    private void pop(boolean object) throws IOException {
+        if (depth == 0 || inObject[depth - 1] != object) {
+            throw syntaxError("Unexpected end of " + (object ? "object" : "array"));
+        }
+        depth--;
+    }
+
+    // after a member's value, the next string of the object is a name again
+    private void valueRead() {
+        if (depth > 0 && inObject[depth - 1]) {
+            expectName[depth - 1] = true;
+        }
+    }
+
+    // commas and colons carry nothing the nesting does not already say, so they are skipped like whitespace
+    private int nextNonSeparator() throws IOException {
+        while (position < limit || fill()) {
+            char c = buffer[position++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != ',' && c != ':') {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private String readString() throws IOException {
+        text.setLength(0);
+        position++; // the opening quote
+        while (true) {
+            if (position == limit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = buffer[position++];
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (position == limit && !fill()) {
+                throw syntaxError("Unterminated escape");
+            }
+            char escaped = buffer[position++];
+            switch (escaped) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        if (position == limit && !fill()) {
+                            throw syntaxError("Unterminated escape");
+                        }
+                        int digit = Character.digit(buffer[position++], 16);
+                        if (digit == -1) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        code = code << 4 | digit;
+                    }
+                    text.append((char) code);
+                    break;
+                default:
+                    text.append(escaped);
+            }
+        }
+    }
+
+    private String readLiteral() throws IOException {
+        text.setLength(0);
+        while (position < limit || fill()) {
+            char c = buffer[position];
+            if (c == ',' || c == ':' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                break;
+            }
+            text.append(c);
+            position++;
+        }
+        return text.toString();
+    }
+
+    private boolean fill() throws IOException {
+        int read = reader.read(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " at depth " + depth);
+    }
+}
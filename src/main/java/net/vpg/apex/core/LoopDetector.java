@@ -0,0 +1,268 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Finds loop points for tracks without LOOPSTART/LOOPEND tags. The track is reduced to a 1 kHz energy
+// envelope whose FFT cross-correlations give candidate loop lengths, the candidates are scored in
+// parallel, and the winner is refined to the exact sample by correlating the full rate waveform.
+public class LoopDetector {
+    private static final Logger logger = LoggerFactory.getLogger(LoopDetector.class);
+    private static final LoopDetector instance = new LoopDetector();
+    private static final int ENVELOPE_RATE = 1000;
+    private static final double MIN_LOOP_SECONDS = 10;
+    private static final double WINDOW_SECONDS = 2;
+    private static final double MIN_MATCH_SECONDS = 4;
+    private static final double MATCH_THRESHOLD = 0.9;
+    private static final int CANDIDATES = 8;
+    private static final int REFINE_WINDOW = 16384;
+    private final ForkJoinPool pool = ApexExecutors.get().getCpu();
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private volatile Consumer<Track> listener = track -> {
+    };
+
+    private LoopDetector() {
+    }
+
+    public static LoopDetector get() {
+        return instance;
+    }
+
+    public void setListener(Consumer<Track> listener) {
+        this.listener = listener;
+    }
+
+    public void submit(Track track) {
+        TrackMetadata metadata = track.getMetadata();
+        if (!track.needsLoopDetection() || !queued.add(metadata.getName())) {
+            return;
+        }
+        // one track at a time on the analysis worker, only scoring its candidates fans out over the cpu pool
+        ApexExecutors.get().getAnalysis().execute(() -> {
+            try {
+                if (detect(track) != null) {
+                    listener.accept(track);
+                }
+                Resources.getInstance().getMetadataCache().save();
+            } catch (Exception e) {
+                logger.warn("Unable to detect loop points of " + metadata.getName(), e);
+            } finally {
+                queued.remove(metadata.getName());
+            }
+        });
+    }
+
+    // detects on the calling thread and records the result in the track's metadata, null when there is no loop
+    public int[] detect(Track track) throws Exception {
+        TrackMetadata metadata = track.getMetadata();
+        long start = System.nanoTime();
+        int[] loop = detect(track.getSource());
+        metadata.setInferredLoop(loop == null ? -1 : loop[0], loop == null ? -1 : loop[1]);
+        Resources.getInstance().getMetadataCache().markDirty();
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (loop == null) {
+            logger.info("No loop found in " + metadata.getName() + " (" + took + " ms)");
+            return null;
+        }
+        logger.info("Inferred loop " + loop[0] + "-" + loop[1] + " for " + metadata.getName() + " in " + took + " ms");
+        track.setInferredLoopPoints(loop[0], loop[1]);
+        return loop;
+    }
+
+    public int[] detect(TrackSource source) throws Exception {
+        AudioFormat format = Apex.AUDIO_FORMAT;
+        int channels = format.getChannels();
+        int frameSize = format.getFrameSize();
+        short[] mono = new short[(int) format.getFrameRate() * 60];
+        int length = 0;
+        byte[] buffer = new byte[frameSize * 4096];
+        try (AudioInputStream stream = Codecs.get().open(source, format)) {
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                int frames = read / frameSize;
+                if (length + frames > mono.length) {
+                    short[] grown = new short[mono.length * 2];
+                    System.arraycopy(mono, 0, grown, 0, length);
+                    mono = grown;
+                }
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    int mixed = 0;
+                    for (int c = 0; c < channels; c++, i += 2) {
+                        mixed += (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
+                    }
+                    mono[length++] = (short) (mixed / channels);
+                }
+            }
+        }
+        return detect(mono, length, (int) format.getFrameRate());
+    }
+
+    int[] detect(short[] pcm, int length, int rate) throws Exception {
+        int factor = rate / ENVELOPE_RATE;
+        int size = length / factor;
+        int window = (int) (WINDOW_SECONDS * ENVELOPE_RATE);
+        int minLag = (int) (MIN_LOOP_SECONDS * ENVELOPE_RATE);
+        int maxLag = size - window;
+        if (maxLag <= minLag) {
+            return null;
+        }
+        double[] envelope = envelope(pcm, size, factor);
+        double[] squares = new double[size + 1];
+        for (int i = 0; i < size; i++) {
+            squares[i + 1] = squares[i] + envelope[i] * envelope[i];
+        }
+        // files that repeat part of the loop show up in the autocorrelation, files that end right at the loop end
+        // are found by matching their last seconds against everything before
+        double[] auto = crossCorrelation(envelope, envelope);
+        double[] tail = crossCorrelation(envelope, Arrays.copyOfRange(envelope, size - window, size));
+        double tailEnergy = squares[size] - squares[size - window];
+        Set<Integer> lags = new HashSet<>();
+        lags.addAll(peaks(minLag, maxLag, lag -> normalize(auto[lag], squares[size - lag], squares[size] - squares[lag])));
+        lags.addAll(peaks(minLag, maxLag, lag -> {
+            int position = size - window - lag;
+            return normalize(tail[position], tailEnergy, squares[position + window] - squares[position]);
+        }));
+        Candidate best = pool.submit(() -> lags.parallelStream()
+            .map(lag -> score(envelope, lag, window))
+            .filter(candidate -> candidate.matched >= MIN_MATCH_SECONDS * ENVELOPE_RATE)
+            .max(Comparator.comparingInt((Candidate candidate) -> candidate.matched).thenComparingInt(candidate -> candidate.lag))
+            .orElse(null)).get();
+        if (best == null) {
+            return null;
+        }
+        // the audio before loopStart matches the audio before loopEnd, find the exact loop length around the coarse one
+        int loopStart = (best.start + window) * factor;
+        int coarseLag = best.lag * factor;
+        int lag = pool.submit(() -> IntStream.rangeClosed(coarseLag - 2 * factor, coarseLag + 2 * factor)
+            .filter(l -> loopStart + l <= length)
+            .parallel()
+            .boxed()
+            .max(Comparator.comparingDouble(l -> correlate(pcm, loopStart - REFINE_WINDOW, loopStart + l - REFINE_WINDOW, REFINE_WINDOW)))
+            .orElse(coarseLag)).get();
+        return new int[]{loopStart, loopStart + lag};
+    }
+
+    private static double[] envelope(short[] pcm, int size, int factor) {
+        double[] envelope = new double[size];
+        double mean = 0;
+        for (int i = 0; i < size; i++) {
+            double energy = 0;
+            for (int j = i * factor, end = j + factor; j < end; j++) {
+                energy += (double) pcm[j] * pcm[j];
+            }
+            envelope[i] = Math.sqrt(energy / factor);
+            mean += envelope[i];
+        }
+        mean /= size;
+        for (int i = 0; i < size; i++) {
+            envelope[i] -= mean;
+        }
+        return envelope;
+    }
+
+    // result[q] = sum of pattern[i] * signal[q + i]
+    private static double[] crossCorrelation(double[] signal, double[] pattern) {
+        FFT fft = new FFT(Integer.highestOneBit(signal.length + pattern.length - 1) << 1);
+        double[] re = Arrays.copyOf(signal, fft.getSize());
+        double[] im = new double[fft.getSize()];
+        double[] patternRe = Arrays.copyOf(pattern, fft.getSize());
+        double[] patternIm = new double[fft.getSize()];
+        fft.transform(re, im);
+        fft.transform(patternRe, patternIm);
+        for (int i = 0; i < re.length; i++) {
+            double r = re[i] * patternRe[i] + im[i] * patternIm[i];
+            im[i] = im[i] * patternRe[i] - re[i] * patternIm[i];
+            re[i] = r;
+        }
+        fft.inverse(re, im);
+        return re;
+    }
+
+    private static double normalize(double product, double a, double b) {
+        return a > 0 && b > 0 ? product / Math.sqrt(a * b) : 0;
+    }
+
+    private static List<Integer> peaks(int from, int to, IntToDoubleFunction correlation) {
+        double[] values = IntStream.range(from, to).mapToDouble(correlation).toArray();
+        return IntStream.range(1, values.length - 1)
+            .filter(i -> values[i] > values[i - 1] && values[i] >= values[i + 1])
+            .boxed()
+            .sorted(Comparator.comparingDouble((Integer i) -> values[i]).reversed())
+            .limit(CANDIDATES)
+            .map(i -> i + from)
+            .collect(Collectors.toList());
+    }
+
+    // the longest run of windows that match the windows one lag later
+    private static Candidate score(double[] envelope, int lag, int window) {
+        int step = window / 8;
+        Candidate best = new Candidate(lag, 0, 0);
+        int start = -1;
+        for (int t = 0; ; t += step) {
+            boolean inside = t + lag + window <= envelope.length;
+            if (inside && correlate(envelope, t, t + lag, window) >= MATCH_THRESHOLD) {
+                if (start == -1) {
+                    start = t;
+                }
+                continue;
+            }
+            if (start != -1 && t - step - start + window > best.matched) {
+                best = new Candidate(lag, start, t - step - start + window);
+            }
+            start = -1;
+            if (!inside) {
+                return best;
+            }
+        }
+    }
+
+    private static double correlate(double[] signal, int a, int b, int length) {
+        double ab = 0, aa = 0, bb = 0;
+        for (int i = 0; i < length; i++) {
+            double x = signal[a + i];
+            double y = signal[b + i];
+            ab += x * y;
+            aa += x * x;
+            bb += y * y;
+        }
+        return aa > 0 && bb > 0 ? ab / Math.sqrt(aa * bb) : 0;
+    }
+
+    private static double correlate(short[] signal, int a, int b, int length) {
+        double ab = 0, aa = 0, bb = 0;
+        for (int i = 0; i < length; i++) {
+            double x = signal[a + i];
+            double y = signal[b + i];
+            ab += x * y;
+            aa += x * x;
+            bb += y * y;
+        }
+        return aa > 0 && bb > 0 ? ab / Math.sqrt(aa * bb) : 0;
+    }
+
+    private static class Candidate {
+        private final int lag;
+        private final int start;
+        private final int matched;
+
+        private Candidate(int lag, int start, int matched) {
+            this.lag = lag;
+            this.start = start;
+            this.matched = matched;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Integrated loudness as per ITU-R BS.1770 (K-weighting, 400 ms blocks with 75% overlap, absolute and relative gates)
+public class LoudnessAnalyzer {
+    public static final boolean NORMALIZE = Boolean.parseBoolean(System.getProperty("apex.normalize", "true"));
+    public static final double TARGET_LOUDNESS = -18; // LUFS, the ReplayGain 2.0 reference level
+    public static final double MAX_GAIN = 4; // +12 dB
+    private static final Logger logger = LoggerFactory.getLogger(LoudnessAnalyzer.class);
+    private static final LoudnessAnalyzer instance = new LoudnessAnalyzer();
+    // K-weighting filter coefficients for 48 kHz: a high shelf followed by a high pass
+    private static final double[] SHELF_B = {1.53512485958697, -2.69169618940638, 1.19839281085285};
+    private static final double[] SHELF_A = {-1.69065929318241, 0.73248077421585};
+    private static final double[] HIGH_PASS_B = {1.0, -2.0, 1.0};
+    private static final double[] HIGH_PASS_A = {-1.99004745483398, 0.99007225036621};
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    private LoudnessAnalyzer() {
+    }
+
+    public static LoudnessAnalyzer get() {
+        return instance;
+    }
+
+    public void submit(Track track) {
+        TrackMetadata metadata = track.getMetadata();
+        if (metadata == null || metadata.hasLoudness() || !queued.add(metadata.getName())) {
+            return;
+        }
+        ApexExecutors.get().getAnalysis().execute(() -> {
+            try {
+                measure(track, true);
+            } catch (Exception e) {
+                logger.warn("Unable to analyze the loudness of " + metadata.getName(), e);
+            } finally {
+                queued.remove(metadata.getName());
+            }
+            if (queued.isEmpty()) {
+                Resources.getInstance().getMetadataCache().save();
+            }
+        });
+    }
+
+    // analyzes the track on the calling thread and records the result in its metadata
+    public void measure(Track track, boolean throttle) throws Exception {
+        TrackMetadata metadata = track.getMetadata();
+        long start = System.nanoTime();
+        double[] result = analyze(track.getSource(), throttle);
+        metadata.setLoudness(result[0], result[1]);
+        Resources.getInstance().getMetadataCache().markDirty();
+        logger.info(String.format("Analyzed %s: %.1f LUFS, peak %.3f in %d ms", metadata.getName(), result[0], result[1],
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    // returns {integrated loudness in LUFS, sample peak as a fraction of full scale}
+    public static double[] analyze(TrackSource source, boolean throttle) throws Exception {
+        AudioFormat format = Apex.AUDIO_FORMAT;
+        int channels = format.getChannels();
+        int frameSize = format.getFrameSize();
+        int subBlockFrames = (int) format.getFrameRate() / 10;
+        double[][] state = new double[channels * 2][4];
+        double[] subBlocks = new double[64];
+        int subBlockCount = 0;
+        int peak = 0;
+        byte[] buffer = new byte[subBlockFrames * frameSize];
+        try (AudioInputStream stream = Codecs.get().open(source, format)) {
+            int read;
+            long start = System.nanoTime();
+            while ((read = readFully(stream, buffer)) > 0) {
+                double energy = 0;
+                int frames = read / frameSize;
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    for (int c = 0; c < channels; c++, i += 2) {
+                        int sample = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
+                        peak = Math.max(peak, Math.abs(sample));
+                        double shelved = biquad(state[c * 2], SHELF_B, SHELF_A, sample / 32768.0);
+                        double weighted = biquad(state[c * 2 + 1], HIGH_PASS_B, HIGH_PASS_A, shelved);
+                        energy += weighted * weighted;
+                    }
+                }
+                if (subBlockCount == subBlocks.length) {
+                    subBlocks = Arrays.copyOf(subBlocks, subBlockCount * 2);
+                }
+                subBlocks[subBlockCount++] = energy / subBlockFrames;
+                if (throttle && Apex.APEX.getClip().isActive()) {
+                    // stay under half of one core while music is playing, decoding the block is most of the work
+                    TimeUnit.NANOSECONDS.sleep(System.nanoTime() - start);
+                }
+                start = System.nanoTime();
+            }
+        }
+        return new double[]{integrate(subBlocks, subBlockCount), peak / 32768.0};
+    }
+
+    private static double integrate(double[] subBlocks, int count) {
+        int blockCount = Math.max(0, count - 3);
+        double[] blocks = new double[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = (subBlocks[i] + subBlocks[i + 1] + subBlocks[i + 2] + subBlocks[i + 3]) / 4;
+        }
+        double relativeGate = loudness(gatedMean(blocks, -70)) - 10;
+        double integrated = loudness(gatedMean(blocks, Math.max(-70, relativeGate)));
+        return Double.isFinite(integrated) ? integrated : -70;
+    }
+
+    private static double gatedMean(double[] blocks, double gate) {
+        double sum = 0;
+        int count = 0;
+        for (double block : blocks) {
+            if (loudness(block) > gate) {
+                sum += block;
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    private static double loudness(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static double biquad(double[] s, double[] b, double[] a, double x) {
+        double y = b[0] * x + b[1] * s[0] + b[2] * s[1] - a[0] * s[2] - a[1] * s[3];
+        s[1] = s[0];
+        s[0] = x;
+        s[3] = s[2];
+        s[2] = y;
+        return y;
+    }
+
+    private static int readFully(AudioInputStream stream, byte[] buffer) throws Exception {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = stream.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
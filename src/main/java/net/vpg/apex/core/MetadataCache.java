@@ -0,0 +1,114 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+// Per-file analysis results, keyed by file name and invalidated when size or modification time change.
+// Stored as a tab separated table whose header names the columns, so new columns can be added freely.
+public class MetadataCache {
+    private static final Logger logger = LoggerFactory.getLogger(MetadataCache.class);
+    private static final String[] COLUMNS = {"name", "size", "modified", "loudness", "peak", "inferredLoopStart", "inferredLoopEnd", "codec"};
+    private final Path file;
+    private final Map<String, TrackMetadata> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    public MetadataCache(Path file) {
+        this.file = file;
+    }
+
+    public void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                return;
+            }
+            List<String> columns = Arrays.asList(header.split("\t"));
+            int name = columns.indexOf("name");
+            int size = columns.indexOf("size");
+            int modified = columns.indexOf("modified");
+            int loudness = columns.indexOf("loudness");
+            int peak = columns.indexOf("peak");
+            int loopStart = columns.indexOf("inferredLoopStart");
+            int loopEnd = columns.indexOf("inferredLoopEnd");
+            int codec = columns.indexOf("codec");
+            if (name == -1 || size == -1 || modified == -1) {
+                logger.warn("Ignoring metadata cache with unknown layout: " + header);
+                return;
+            }
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] row = line.split("\t", -1);
+                TrackMetadata metadata = new TrackMetadata(row[name], Long.parseLong(row[size]), Long.parseLong(row[modified]));
+                if (loudness != -1 && peak != -1 && !row[loudness].isEmpty()) {
+                    metadata.setLoudness(Double.parseDouble(row[loudness]), Double.parseDouble(row[peak]));
+                }
+                if (loopStart != -1 && loopEnd != -1 && !row[loopStart].isEmpty()) {
+                    metadata.setInferredLoop(Integer.parseInt(row[loopStart]), Integer.parseInt(row[loopEnd]));
+                }
+                if (codec != -1 && !row[codec].isEmpty()) {
+                    metadata.setCodec(row[codec]);
+                }
+                entries.put(metadata.getName(), metadata);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read the metadata cache, it will be rebuilt", e);
+            entries.clear();
+        }
+    }
+
+    public TrackMetadata get(TrackSource source) {
+        return entries.compute(source.getName(), (name, metadata) -> metadata != null && metadata.matches(source) ? metadata : TrackMetadata.of(source));
+    }
+
+    // the entry for the track if it is cached and still matches it, without creating one
+    public TrackMetadata find(TrackSource source) {
+        TrackMetadata metadata = entries.get(source.getName());
+        return metadata != null && metadata.matches(source) ? metadata : null;
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(String.join("\t", COLUMNS));
+                writer.newLine();
+                for (TrackMetadata metadata : entries.values()) {
+                    writer.write(metadata.getName() + "\t" + metadata.getSize() + "\t" + metadata.getModified() + "\t" +
+                        (metadata.hasLoudness() ? metadata.getLoudness() + "\t" + metadata.getPeak() : "\t") + "\t" +
+                        (metadata.hasLoopDetection() ? metadata.getInferredLoopStart() + "\t" + metadata.getInferredLoopEnd() : "\t") + "\t" +
+                        (metadata.getCodec() == null ? "" : metadata.getCodec()));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            logger.warn("Unable to save the metadata cache", e);
+        }
+    }
+}
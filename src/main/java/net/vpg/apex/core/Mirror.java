@@ -0,0 +1,168 @@
+package net.vpg.apex.core;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One place the additional tracks can be downloaded from: a local or mounted directory, or an HTTP server such as
+// the release branch on GitHub or a cache on the LAN. It keeps a moving average of its throughput, and after a
+// failure it is left alone for a while that doubles with every further failure.
+public class Mirror {
+    private static final double ALPHA = 0.3;
+    private static final long BASE_BACKOFF = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toNanos(2);
+    private static final int TIMEOUT = (int) TimeUnit.SECONDS.toMillis(15);
+    private final String location;
+    private final Path directory;
+    // bytes per second, NaN until the first download finished
+    private double throughput = Double.NaN;
+    private int failures = 0;
+    private long retryAt = System.nanoTime();
+
+    private Mirror(String location, Path directory) {
+        this.location = location;
+        this.directory = directory;
+    }
+
+    // an http(s) URL of the directory holding the tracks, a file: URL or a plain path
+    public static Mirror of(String location) {
+        if (location.startsWith("http://") || location.startsWith("https://")) {
+            return new Mirror(location.endsWith("/") ? location : location + "/", null);
+        }
+        Path directory = location.startsWith("file:") ? Paths.get(URI.create(location)) : Paths.get(location);
+        return new Mirror(directory.toString(), directory);
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public synchronized double getThroughput() {
+        return throughput;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    synchronized long getRetryAt() {
+        return retryAt;
+    }
+
+    synchronized void succeeded(long bytes, long nanos) {
+        double sample = bytes * 1e9 / Math.max(1, nanos);
+        throughput = Double.isNaN(throughput) ? sample : ALPHA * sample + (1 - ALPHA) * throughput;
+        failures = 0;
+    }
+
+    synchronized void failed() {
+        failures++;
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 16));
+        // jitter keeps downloads that failed together from coming back together
+        retryAt = System.nanoTime() + backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    // the file from the given offset on, FileNotFoundException if this mirror does not have it
+    InputStream open(String filename, long offset) throws IOException {
+        if (directory != null) {
+            try {
+                FileChannel channel = FileChannel.open(directory.resolve(filename));
+                channel.position(offset);
+                return Channels.newInputStream(channel);
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(location + encode(filename)).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        int code = connection.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+            connection.disconnect();
+            throw new FileNotFoundException(location + filename);
+        }
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException(location + " responded with " + code);
+        }
+        InputStream input = connection.getInputStream();
+        long length = connection.getContentLengthLong();
+        // a server that ignores the range sends the whole file, the part already there is skipped
+        long skip = code == HttpURLConnection.HTTP_OK ? offset : 0;
+        if (length >= 0) {
+            length -= skip;
+        }
+        while (skip > 0) {
+            long skipped = input.skip(skip);
+            if (skipped <= 0) {
+                if (input.read() == -1) {
+                    input.close();
+                    throw new IOException(location + filename + " is shorter than the part already downloaded");
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+        return length < 0 ? input : new LengthChecked(input, length, location + filename);
+    }
+
+    private static String encode(String filename) {
+        return URLEncoder.encode(filename, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    @Override
+    public String toString() {
+        return location;
+    }
+
+    // a connection dropped part way through ends the stream like a complete response would, this tells them apart
+    // so that the download resumes from where it broke off
+    private static class LengthChecked extends FilterInputStream {
+        private final String name;
+        private long remaining;
+
+        private LengthChecked(InputStream input, long length, String name) {
+            super(input);
+            this.remaining = length;
+            this.name = name;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            count(read == -1 ? -1 : 1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            count(read);
+            return read;
+        }
+
+        private void count(int read) throws EOFException {
+            if (read == -1 && remaining > 0) {
+                throw new EOFException(name + " broke off " + remaining + " bytes before its end");
+            }
+            remaining -= Math.max(0, read);
+        }
+    }
+}
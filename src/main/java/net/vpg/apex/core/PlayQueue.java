@@ -0,0 +1,217 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+// Up-next queue and a bounded history of played track ids. Every change is one line appended to a log,
+// which is replayed on startup and rewritten from the current state once it has grown well past it.
+public class PlayQueue {
+    public static final int HISTORY_SIZE = 100;
+    private static final Logger logger = LoggerFactory.getLogger(PlayQueue.class);
+    private static final char ADD_LAST = '+';
+    private static final char ADD_FIRST = '^';
+    private static final char POLL = '-';
+    private static final char REMEMBER = 'h';
+    private static final char BACK = '<';
+    private static final char CLEAR = 'c';
+    private final Deque<String> upNext = new ArrayDeque<>();
+    private final String[] history = new String[HISTORY_SIZE];
+    private final Path file;
+    private int historyEnd = 0;
+    private int historySize = 0;
+    private int logLines = 0;
+    private BufferedWriter log;
+
+    public PlayQueue(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void load() {
+        if (Files.exists(file)) {
+            try {
+                byte[] bytes = Files.readAllBytes(file);
+                // a record only counts once its line is complete, a crash can cut the last one short
+                int end = bytes.length;
+                while (end > 0 && bytes[end - 1] != '\n') {
+                    end--;
+                }
+                new String(bytes, 0, end, StandardCharsets.UTF_8).lines().forEach(line -> {
+                    if (!line.isEmpty()) {
+                        apply(line.charAt(0), line.substring(1));
+                        logLines++;
+                    }
+                });
+            } catch (IOException e) {
+                logger.warn("Unable to read the play queue, starting with an empty one", e);
+                upNext.clear();
+                historySize = 0;
+            }
+        }
+        compact();
+    }
+
+    public synchronized void add(String id) {
+        write(ADD_LAST, id);
+    }
+
+    public synchronized void addFirst(String id) {
+        write(ADD_FIRST, id);
+    }
+
+    public synchronized String poll() {
+        String id = upNext.peekFirst();
+        if (id != null) {
+            write(POLL, "");
+        }
+        return id;
+    }
+
+    public synchronized String peek() {
+        return upNext.peekFirst();
+    }
+
+    public synchronized void remember(String id) {
+        write(REMEMBER, id);
+    }
+
+    // the track played before the current one, which is forgotten again
+    public synchronized String back() {
+        if (historySize == 0) {
+            return null;
+        }
+        String id = history[Math.floorMod(historyEnd - 1, HISTORY_SIZE)];
+        write(BACK, "");
+        return id;
+    }
+
+    public synchronized void clear() {
+        write(CLEAR, "");
+    }
+
+    public synchronized int size() {
+        return upNext.size();
+    }
+
+    // the first queued id the filter accepts, without copying the queue
+    public synchronized String find(Predicate<String> filter) {
+        for (String id : upNext) {
+            if (filter.test(id)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    // the place of the id in the queue, -1 if it is not queued
+    public synchronized int indexOf(String id) {
+        int index = 0;
+        for (String queued : upNext) {
+            if (queued.equals(id)) {
+                return index;
+            }
+            index++;
+        }
+        return -1;
+    }
+
+    public synchronized List<String> getHistory() {
+        List<String> list = new ArrayList<>(historySize);
+        for (int i = historySize; i > 0; i--) {
+            list.add(history[Math.floorMod(historyEnd - i, HISTORY_SIZE)]);
+        }
+        return list;
+    }
+
+    private void apply(char operation, String id) {
+        switch (operation) {
+            case ADD_LAST:
+                upNext.addLast(id);
+                break;
+            case ADD_FIRST:
+                upNext.addFirst(id);
+                break;
+            case POLL:
+                upNext.pollFirst();
+                break;
+            case REMEMBER:
+                history[historyEnd] = id;
+                historyEnd = (historyEnd + 1) % HISTORY_SIZE;
+                historySize = Math.min(historySize + 1, HISTORY_SIZE);
+                break;
+            case BACK:
+                if (historySize > 0) {
+                    historyEnd = Math.floorMod(historyEnd - 1, HISTORY_SIZE);
+                    history[historyEnd] = null;
+                    historySize--;
+                }
+                break;
+            case CLEAR:
+                upNext.clear();
+                break;
+            default:
+                logger.warn("Ignoring unknown play queue entry: " + operation + id);
+        }
+    }
+
+    private void write(char operation, String id) {
+        apply(operation, id);
+        if (logLines > 4 * (upNext.size() + historySize) + 64) {
+            compact();
+            return;
+        }
+        try {
+            if (log == null) {
+                Files.createDirectories(file.getParent());
+                log = Files.newBufferedWriter(file, StandardCharsets.UTF_8, CREATE, APPEND);
+            }
+            log.write(operation + id);
+            log.newLine();
+            log.flush();
+            logLines++;
+        } catch (IOException e) {
+            logger.warn("Unable to append to the play queue log", e);
+        }
+    }
+
+    // rewrites the log as the shortest sequence of entries producing the current state
+    private void compact() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+            Files.createDirectories(file.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (String id : getHistory()) {
+                    writer.write(REMEMBER + id);
+                    writer.newLine();
+                }
+                for (String id : upNext) {
+                    writer.write(ADD_LAST + id);
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            logLines = upNext.size() + historySize;
+        } catch (IOException e) {
+            logger.warn("Unable to compact the play queue log", e);
+        }
+    }
+}
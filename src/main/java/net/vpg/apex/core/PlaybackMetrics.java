@@ -0,0 +1,181 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+public class PlaybackMetrics implements PlaybackMetricsMXBean {
+    // -Dapex.metrics=false turns every record call into a constant-false branch
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("apex.metrics", "true"));
+    private static final Logger logger = LoggerFactory.getLogger(PlaybackMetrics.class);
+    private static final PlaybackMetrics instance = new PlaybackMetrics();
+    private static final long EXPORT_PERIOD = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_FILE_SIZE = 1024 * 1024;
+    private static final int MAX_FILES = 3;
+    private final Histogram decodeTime = new Histogram();
+    private final Histogram writeBlockTime = new Histogram();
+    private final Histogram bufferFill = new Histogram();
+    private final Histogram trackSwitchLatency = new Histogram();
+    private final LongAdder underruns = new LongAdder();
+    private volatile long pcmBufferBytes;
+    private Path metricsFile;
+
+    private PlaybackMetrics() {
+    }
+
+    public static PlaybackMetrics get() {
+        return instance;
+    }
+
+    public void start(Path directory) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("net.vpg.apex:type=PlaybackMetrics"));
+        } catch (Exception e) {
+            logger.warn("Unable to register playback metrics with JMX", e);
+        }
+        metricsFile = directory.resolve("metrics.log");
+        Apex.APEX.getMainExecutor().scheduleAtFixedRate(this::export, EXPORT_PERIOD, EXPORT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public void recordDecode(long nanos, long pcmBytes) {
+        decodeTime.record(nanos);
+        pcmBufferBytes = pcmBytes;
+    }
+
+    public void recordWrite(long nanos, int available, int bufferSize, boolean playing) {
+        writeBlockTime.record(nanos);
+        if (bufferSize > 0 && playing) {
+            bufferFill.record((bufferSize - available) * 100L / bufferSize);
+            if (available >= bufferSize) {
+                underruns.increment();
+            }
+        }
+    }
+
+    public void recordTrackSwitch(long nanos) {
+        trackSwitchLatency.record(nanos);
+    }
+
+    private void export() {
+        String line = String.format("%s buffers=%d decodeP50=%dus decodeP99=%dus decodeMax=%dus writeP99=%dus writeMax=%dus " +
+                "underruns=%d fillMean=%.1f%% fillP01=%d%% switches=%d switchP50=%dms switchMax=%dms pcmBytes=%d%n",
+            Instant.now(), getBuffersDecoded(), getDecodeTimeP50Micros(), getDecodeTimeP99Micros(), getDecodeTimeMaxMicros(),
+            getWriteBlockP99Micros(), getWriteBlockMaxMicros(), getUnderruns(), getBufferFillPercentMean(), getBufferFillPercentP01(),
+            getTrackSwitchCount(), getTrackSwitchLatencyP50Millis(), getTrackSwitchLatencyMaxMillis(), getPcmBufferBytes());
+        try {
+            Files.createDirectories(metricsFile.getParent());
+            if (Files.exists(metricsFile) && Files.size(metricsFile) > MAX_FILE_SIZE) {
+                roll();
+            }
+            Files.write(metricsFile, line.getBytes(StandardCharsets.UTF_8), CREATE, APPEND);
+        } catch (IOException e) {
+            logger.warn("Unable to write playback metrics", e);
+        }
+    }
+
+    private void roll() throws IOException {
+        for (int i = MAX_FILES - 1; i > 0; i--) {
+            Path older = metricsFile.resolveSibling("metrics." + i + ".log");
+            Path newer = i == 1 ? metricsFile : metricsFile.resolveSibling("metrics." + (i - 1) + ".log");
+            if (Files.exists(newer)) {
+                Files.move(newer, older, REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @Override
+    public long getBuffersDecoded() {
+        return decodeTime.getCount();
+    }
+
+    @Override
+    public long getDecodeTimeP50Micros() {
+        return decodeTime.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getDecodeTimeP99Micros() {
+        return decodeTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getDecodeTimeMaxMicros() {
+        return decodeTime.getMax() / 1000;
+    }
+
+    @Override
+    public long getWriteBlockP50Micros() {
+        return writeBlockTime.getPercentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getWriteBlockP99Micros() {
+        return writeBlockTime.getPercentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getWriteBlockMaxMicros() {
+        return writeBlockTime.getMax() / 1000;
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    @Override
+    public double getBufferFillPercentMean() {
+        return bufferFill.getMean();
+    }
+
+    @Override
+    public long getBufferFillPercentP01() {
+        return bufferFill.getPercentile(0.01);
+    }
+
+    @Override
+    public long getTrackSwitchCount() {
+        return trackSwitchLatency.getCount();
+    }
+
+    @Override
+    public long getTrackSwitchLatencyP50Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(trackSwitchLatency.getPercentile(0.5));
+    }
+
+    @Override
+    public long getTrackSwitchLatencyMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(trackSwitchLatency.getMax());
+    }
+
+    @Override
+    public long getPcmBufferBytes() {
+        return pcmBufferBytes;
+    }
+
+    @Override
+    public void reset() {
+        decodeTime.reset();
+        writeBlockTime.reset();
+        bufferFill.reset();
+        trackSwitchLatency.reset();
+        underruns.reset();
+    }
+}
@@ -0,0 +1,33 @@
+package net.vpg.apex.core;
+
+public interface PlaybackMetricsMXBean {
+    long getBuffersDecoded();
+
+    long getDecodeTimeP50Micros();
+
+    long getDecodeTimeP99Micros();
+
+    long getDecodeTimeMaxMicros();
+
+    long getWriteBlockP50Micros();
+
+    long getWriteBlockP99Micros();
+
+    long getWriteBlockMaxMicros();
+
+    long getUnderruns();
+
+    double getBufferFillPercentMean();
+
+    long getBufferFillPercentP01();
+
+    long getTrackSwitchCount();
+
+    long getTrackSwitchLatencyP50Millis();
+
+    long getTrackSwitchLatencyMaxMillis();
+
+    long getPcmBufferBytes();
+
+    void reset();
+}
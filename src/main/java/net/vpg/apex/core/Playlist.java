@@ -0,0 +1,210 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Util;
+
+import java.io.File;
+import java.util.*;
+
+// Rows of the TrackTable in play order, sorted by id until shuffled
+public class Playlist extends AbstractList<Track> implements RandomAccess {
+    public static final Comparator<Track> ORDER = (a, b) -> TrackTable.get().compareIds(a.getRow(), b.getRow());
+    private final TrackTable table = TrackTable.get();
+    private final Listener listener;
+    private int[] rows = new int[64];
+    private int size = 0;
+    private boolean shuffled = false;
+    private int index = 0;
+    // bumped whenever the order changes, so that it is only saved again when it did
+    private int version = 0;
+
+    public Playlist(Listener listener) {
+        this.listener = listener;
+    }
+
+    public static boolean isPlayable(File file) {
+        return Codecs.get().probe(TrackSource.of(file), Resources.getInstance().getMetadataCache()) != null;
+    }
+
+    public synchronized void reset(Collection<Track> newTracks) {
+        int current = size == 0 ? -1 : rows[index];
+        rows = new int[Math.max(64, newTracks.size())];
+        size = 0;
+        for (Track track : newTracks) {
+            rows[size++] = track.getRow();
+        }
+        table.sort(rows, size, null);
+        shuffled = false;
+        index = Math.max(0, rowIndex(current));
+        version++;
+        listener.reordered();
+    }
+
+    public synchronized void shuffle() {
+        int current = rows[index];
+        Util.shuffle(rows, size);
+        shuffled = true;
+        index = rowIndex(current);
+        version++;
+        listener.reordered();
+    }
+
+    // puts the tracks back into a saved shuffled order, tracks that are not part of it follow in sorted order
+    public synchronized void restore(List<String> order) {
+        int current = size == 0 ? -1 : rows[index];
+        int[] ranks = new int[table.size()];
+        Arrays.fill(ranks, Integer.MAX_VALUE);
+        for (int i = order.size() - 1; i >= 0; i--) {
+            int row = table.find(order.get(i));
+            if (row != -1) {
+                ranks[row] = i;
+            }
+        }
+        table.sort(rows, size, ranks);
+        shuffled = true;
+        index = Math.max(0, rowIndex(current));
+        version++;
+        listener.reordered();
+    }
+
+    public synchronized void apply(ResourceChange change) {
+        change.getRemoved()
+            .forEach(name -> {
+                Track track = Track.forId(Util.getId(name));
+                // only when the removed file is the one the track plays, not another file sharing its id
+                if (track != null && track.getSource() != null && track.getSource().getName().equals(name)) {
+                    remove(track);
+                }
+            });
+        change.getUpdated()
+            .values()
+            .stream()
+            .filter(Playlist::isPlayable)
+            .map(Track::get)
+            .forEach(this::insert);
+        change.getArchived()
+            .stream()
+            .filter(entry -> !Resources.getInstance().hasFile(entry.getName()))
+            .map(Track::get)
+            .forEach(this::insert);
+    }
+
+    public synchronized void insert(Track track) {
+        int position = positionOf(track.getRow());
+        if (position >= 0) {
+            return;
+        }
+        position = shuffled ? Util.random(0, size + 1) : -position - 1;
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        System.arraycopy(rows, position, rows, position + 1, size - position);
+        rows[position] = track.getRow();
+        size++;
+        if (position <= index && size > 1) {
+            index++;
+        }
+        version++;
+        listener.inserted(position, track);
+    }
+
+    public synchronized void remove(Track track) {
+        int position = positionOf(track.getRow());
+        if (position < 0) {
+            return;
+        }
+        System.arraycopy(rows, position + 1, rows, position, size - position - 1);
+        size--;
+        if (position < index || index == size && index > 0) {
+            index--;
+        }
+        version++;
+        listener.removed(position, track);
+    }
+
+    // matches ids first, then lower case names
+    public synchronized int find(String text, int start, int end) {
+        return table.search(rows, start, end, text);
+    }
+
+    private int positionOf(int row) {
+        if (!shuffled) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = table.compareIds(rows[middle], row);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -low - 1;
+        }
+        int position = rowIndex(row);
+        return position == -1 ? -size - 1 : position;
+    }
+
+    private int rowIndex(int row) {
+        for (int i = 0; i < size; i++) {
+            if (rows[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int getIndex() {
+        return index;
+    }
+
+    public synchronized void setIndex(int index) {
+        this.index = index;
+    }
+
+    public synchronized Track getCurrent() {
+        return get(index);
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized boolean isShuffled() {
+        return shuffled;
+    }
+
+    public synchronized List<Track> snapshot() {
+        List<Track> tracks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            tracks.add(table.view(rows[i]));
+        }
+        return tracks;
+    }
+
+    @Override
+    public synchronized Track get(int index) {
+        Objects.checkIndex(index, size);
+        return table.view(rows[index]);
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized int indexOf(Object o) {
+        return o instanceof Track ? Math.max(-1, positionOf(((Track) o).getRow())) : -1;
+    }
+
+    public interface Listener {
+        void inserted(int index, Track track);
+
+        void removed(int index, Track track);
+
+        void reordered();
+    }
+}
@@ -0,0 +1,178 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+// The GitHub contents listing of the additional tracks, cached on disk and revalidated with its ETag.
+// Entries are streamed: a fetch hands each one on while the response is still arriving, while copying the
+// response into the cache, and a cached listing is read the same way without ever being held whole.
+public class RemoteCatalog {
+    public static final long TTL = TimeUnit.MINUTES.toMillis(15);
+    private static final Logger logger = LoggerFactory.getLogger(RemoteCatalog.class);
+    private final String url;
+    private final Path cacheFile;
+    private final Path etagFile;
+    private long validatedAt;
+
+    public RemoteCatalog(String url, Path cacheFile) {
+        this.url = url;
+        this.cacheFile = cacheFile;
+        this.etagFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".etag");
+    }
+
+    public List<OnlineTrack> get(boolean revalidate) throws IOException {
+        List<OnlineTrack> entries = new ArrayList<>();
+        forEach(revalidate, entries::add);
+        return Collections.unmodifiableList(entries);
+    }
+
+    // the cached copy is read when the server can not be reached or the response breaks off before its first entry.
+    // A response that breaks off later throws after some entries were handed on already, get() drops those
+    public synchronized void forEach(boolean revalidate, Consumer<OnlineTrack> action) throws IOException {
+        boolean cached = Files.exists(cacheFile);
+        if (cached && validatedAt == 0) {
+            validatedAt = Files.getLastModifiedTime(cacheFile).toMillis();
+        }
+        // a fresh listing costs no round trip, a stale one is revalidated with If-None-Match
+        if (!cached || revalidate || System.currentTimeMillis() - validatedAt >= TTL) {
+            if (fetch(cached, action)) {
+                return;
+            }
+        }
+        try (InputStream input = Files.newInputStream(cacheFile)) {
+            parse(input, action);
+        }
+    }
+
+    // true if the entries were handed on from the response, false if the cached copy is to be used
+    private boolean fetch(boolean cached, Consumer<OnlineTrack> action) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Accept", "application/vnd.github+json");
+        String etag = cached && Files.exists(etagFile) ? Files.readString(etagFile, StandardCharsets.UTF_8) : null;
+        if (etag != null) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        int code;
+        try {
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            if (!cached) {
+                throw e;
+            }
+            logger.warn("Unable to reach the remote catalog, using the cached copy", e);
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            logger.info("Remote catalog not modified since last fetch");
+            Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(now));
+            validatedAt = now;
+            return false;
+        }
+        if (code != HttpURLConnection.HTTP_OK) {
+            if (!cached) {
+                throw new IOException("Unable to fetch remote catalog, server responded with " + code);
+            }
+            logger.warn("Unable to revalidate remote catalog (" + code + "), using the cached copy");
+            return false;
+        }
+        Files.createDirectories(cacheFile.getParent());
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        int[] delivered = new int[1];
+        try (InputStream input = connection.getInputStream();
+             OutputStream copy = Files.newOutputStream(temp)) {
+            InputStream tee = new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        copy.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        copy.write(buffer, offset, read);
+                    }
+                    return read;
+                }
+            };
+            parse(tee, entry -> {
+                delivered[0]++;
+                action.accept(entry);
+            });
+            // whatever follows the array still belongs in the cached copy
+            tee.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            if (!cached || delivered[0] > 0) {
+                throw e;
+            }
+            logger.warn("Remote catalog broke off before its first entry, using the cached copy", e);
+            return false;
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, cacheFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        String newEtag = connection.getHeaderField("ETag");
+        if (newEtag != null) {
+            Files.writeString(etagFile, newEtag, StandardCharsets.UTF_8);
+        } else {
+            Files.deleteIfExists(etagFile);
+        }
+        validatedAt = now;
+        logger.info("Fetched remote catalog with " + delivered[0] + " entries");
+        return true;
+    }
+
+    // reads the array of contents one object at a time, keeping only the name and size of each
+    private static void parse(InputStream input, Consumer<OnlineTrack> action) throws IOException {
+        JsonReader reader = new JsonReader(input);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String name = null;
+            long size = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "size":
+                        size = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (name != null) {
+                action.accept(new OnlineTrack(name, size));
+            }
+        }
+        reader.endArray();
+    }
+}
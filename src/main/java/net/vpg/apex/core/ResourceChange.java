@@ -0,0 +1,51 @@
+package net.vpg.apex.core;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class ResourceChange {
+    private final Map<String, File> updated = new HashMap<>();
+    private final Set<String> removed = new HashSet<>();
+    private final Map<String, TrackArchive.Entry> archived = new HashMap<>();
+
+    void update(File file) {
+        removed.remove(file.getName());
+        updated.put(file.getName(), file);
+    }
+
+    void remove(String name) {
+        updated.remove(name);
+        removed.add(name);
+    }
+
+    void archive(TrackArchive.Entry entry) {
+        archived.put(entry.getName(), entry);
+    }
+
+    public boolean isEmpty() {
+        return updated.isEmpty() && removed.isEmpty() && archived.isEmpty();
+    }
+
+    public Map<String, File> getUpdated() {
+        return Collections.unmodifiableMap(updated);
+    }
+
+    public Set<String> getRemoved() {
+        return Collections.unmodifiableSet(removed);
+    }
+
+    // tracks added to the archive, the files they were downloaded to are gone already
+    public Collection<TrackArchive.Entry> getArchived() {
+        return Collections.unmodifiableCollection(archived.values());
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceChange{updated=" + updated.keySet() + ", removed=" + removed + ", archived=" + archived.keySet() + "}";
+    }
+}
@@ -2,7 +2,6 @@ package net.vpg.apex.core;
 
 import net.vpg.apex.Apex;
 import net.vpg.apex.Util;
-import net.vpg.apex.components.Downloader;
 import net.vpg.vjson.value.JSONArray;
 import net.vpg.vjson.value.JSONObject;
 import org.slf4j.Logger;
@@ -10,15 +9,23 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.*;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 public class Resources {
+    // keep downloaded tracks in one packed file instead of a file each
+    public static final boolean ARCHIVE = Boolean.parseBoolean(System.getProperty("apex.archive", "false"));
     private static final Logger logger = LoggerFactory.getLogger(Resources.class);
+    private static final long DEBOUNCE_DELAY = TimeUnit.MILLISECONDS.toNanos(300);
+    private static final long MAX_BATCH_DELAY = TimeUnit.SECONDS.toNanos(2);
     private static Resources instance;
     private final JSONObject info;
     private final String repo;
@@ -26,7 +33,16 @@ public class Resources {
     private final Path configDir;
     private final Path dataDir;
     private final Path cacheDir;
-    private final Map<String, File> resources;
+    private final Object resourcesLock = new Object();
+    private final List<Consumer<ResourceChange>> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, File> resources = Collections.emptyMap();
+    private final RemoteCatalog catalog;
+    private final MetadataCache metadataCache;
+    private final PlayQueue playQueue;
+    private final SessionStore session;
+    private volatile TrackArchive archive;
+    private final DownloadScheduler downloads;
+    private final CompletableFuture<Void> ready;
 
     private Resources() {
         // init basic json info
@@ -52,23 +68,83 @@ public class Resources {
         configDir = paths[0].resolve(appName);
         cacheDir = paths[1] == null ? configDir : paths[1].resolve(appName);
         dataDir = paths[2] == null ? configDir : paths[2].resolve(appName);
+        metadataCache = new MetadataCache(cacheDir.resolve("metadata.tsv"));
+        playQueue = new PlayQueue(configDir.resolve("queue.log"));
+        session = new SessionStore(configDir.resolve("session.properties"));
+        catalog = new RemoteCatalog("https://api.github.com/repos/" + repo + "/contents/" + additionalRes, cacheDir.resolve("contents.json"));
+        List<Mirror> mirrors = DownloadScheduler.parseMirrors(DownloadScheduler.MIRRORS);
+        mirrors.add(Mirror.of(getBaseDownloadUrl() + additionalRes));
+        downloads = new DownloadScheduler(mirrors, cacheDir.resolve("downloads"), DownloadScheduler.BANDWIDTH * 1024,
+            this::store, this::queuePosition, ApexExecutors.get().getIo());
+
+        // scan the library and extract the bundled files in the background,
+        // tracks.json is parsed as soon as the extracted copy is in place
+        Executor io = ApexExecutors.get().getIo();
+        CompletableFuture<Void> scan = load("scan data dir", this::scanDataDir, io);
+        CompletableFuture<Void> metadata = load("load metadata cache", metadataCache::load, io);
+        CompletableFuture<Void> queue = load("load play queue", playQueue::load, io);
+        CompletableFuture<Void> lastSession = load("load session", session::load, io);
+        CompletableFuture<Void> packed = ARCHIVE ? load("open archive", this::openArchive, io) : CompletableFuture.completedFuture(null);
+        // tracks.json is still parsed when extracting fails, from an older copy or the one in the jar
+        CompletableFuture<Void> tracks = load("extract resources", this::extractResources, io)
+            .thenCompose(v -> load("parse tracks.json", () -> Track.loadEntries(dataDir.resolve("tracks.json").toFile()), io));
+        ready = CompletableFuture.allOf(scan, metadata, queue, lastSession, packed, tracks).thenRun(() -> {
+            ApexExecutors.get().startDedicated("Directory Watcher", Thread.NORM_PRIORITY, this::watchDataDir);
+            StartupLog.mark("resources ready");
+        });
+    }
+
+    // a stage that fails is logged and left out, the player starts with what the other stages loaded
+    private static CompletableFuture<Void> load(String stage, Runnable action, Executor io) {
+        return CompletableFuture.runAsync(() -> StartupLog.time(stage, action), io).exceptionally(e -> {
+            logger.error("Unable to " + stage + ", starting without it", e);
+            return null;
+        });
+    }
+
+    private void scanDataDir() {
         File directory = dataDir.toFile();
         //noinspection ResultOfMethodCallIgnored
         directory.mkdirs();
-        resources = Util.collectFilesOf(directory).stream().collect(Collectors.toMap(File::getName, file -> file));
-        new Thread(this::watchDataDir, "Directory Watcher").start();
-        ifFileExists("info.json", file -> {
-            JSONObject json = Util.compute(file, JSONObject::parse);
-            if (info.getBoolean("override") || json.getInt("version") < info.getInt("version")) {
-                shiftFiles();
-            }
-        }, this::shiftFiles);
+        ResourceChange change = new ResourceChange();
+        Util.collectFilesOf(directory).forEach(change::update);
+        publish(change);
+    }
+
+    private void openArchive() {
+        try {
+            archive = TrackArchive.open(dataDir.resolve("library.apxpack"));
+        } catch (IOException e) {
+            logger.warn("Unable to open the track archive, downloads are kept as separate files", e);
+        }
+    }
+
+    private void extractResources() {
+        //noinspection ResultOfMethodCallIgnored
+        dataDir.toFile().mkdirs();
+        File file = dataDir.resolve("info.json").toFile();
+        if (!file.exists()) {
+            shiftFiles();
+            return;
+        }
+        JSONObject json = Util.compute(file, JSONObject::parse);
+        if (info.getBoolean("override") || json.getInt("version") < info.getInt("version")) {
+            shiftFiles();
+        }
     }
 
     public static Resources getInstance() {
         return instance == null ? instance = new Resources() : instance;
     }
 
+    public void whenReady(Runnable action) {
+        ready.thenRun(action);
+    }
+
+    public void awaitReady() {
+        ready.join();
+    }
+
     public static File get(String filename) {
         return getInstance().resources.get(filename);
     }
@@ -92,38 +168,118 @@ public class Resources {
 
     private void watchDataDir() {
         try (WatchService service = dataDir.getFileSystem().newWatchService()) {
-            dataDir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-            for (WatchKey key = service.take(); key.reset(); key = service.take()) {
-                key.pollEvents().forEach(event -> {
-                    WatchEvent.Kind<?> kind = event.kind();
-                    Path path = (Path) event.context();
-                    File file = dataDir.resolve(path.getFileName()).toFile();
-                    if (kind == ENTRY_CREATE || kind == ENTRY_MODIFY) {
-                        resources.put(file.getName(), file);
-                    } else { // kind == ENTRY_DELETE
-                        resources.remove(file.getName());
+            Map<WatchKey, Path> directories = new HashMap<>();
+            register(service, directories, dataDir);
+            while (!directories.isEmpty()) {
+                // collect events until the directory has been quiet for a while, so that
+                // a burst (e.g. one download) ends up in a single change set
+                ResourceChange change = new ResourceChange();
+                long deadline = System.nanoTime() + MAX_BATCH_DELAY;
+                for (WatchKey key = service.take(); key != null; ) {
+                    Path directory = directories.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == OVERFLOW) {
+                            rescan(change);
+                        } else if (directory != null) {
+                            handleEvent(service, directories, change, event.kind(), directory.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) {
+                        directories.remove(key);
                     }
-                });
+                    long remaining = deadline - System.nanoTime();
+                    key = remaining > 0 ? service.poll(Math.min(DEBOUNCE_DELAY, remaining), TimeUnit.NANOSECONDS) : null;
+                }
+                publish(change);
             }
-        } catch (IOException | InterruptedException e) {
+            logger.warn("Data directory is no longer accessible, stopped watching it");
+        } catch (InterruptedException e) {
+            logger.info("Stopped watching the data directory");
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void handleEvent(WatchService service, Map<WatchKey, Path> directories, ResourceChange change, WatchEvent.Kind<?> kind, Path path) throws IOException {
+        if (kind == ENTRY_DELETE) {
+            resources.values()
+                .stream()
+                .filter(file -> file.toPath().startsWith(path))
+                .forEach(file -> change.remove(file.getName()));
+            change.remove(path.getFileName().toString());
+        } else if (Files.isDirectory(path)) {
+            if (kind == ENTRY_CREATE) {
+                register(service, directories, path);
+                Util.collectFilesOf(path.toFile()).forEach(change::update);
+            }
+        } else {
+            change.update(path.toFile());
+        }
+    }
+
+    private void register(WatchService service, Map<WatchKey, Path> directories, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                directories.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void rescan(ResourceChange change) {
+        List<File> files = Util.collectFilesOf(dataDir.toFile());
+        Set<String> names = files.stream().map(File::getName).collect(Collectors.toSet());
+        files.forEach(change::update);
+        resources.keySet().stream().filter(name -> !names.contains(name)).forEach(change::remove);
+    }
+
+    private void publish(ResourceChange change) {
+        if (change.isEmpty()) {
+            return;
+        }
+        synchronized (resourcesLock) {
+            Map<String, File> updated = new HashMap<>(resources);
+            updated.putAll(change.getUpdated());
+            updated.keySet().removeAll(change.getRemoved());
+            resources = Collections.unmodifiableMap(updated);
+        }
+        logger.debug("Published " + change);
+        changeListeners.forEach(listener -> listener.accept(change));
+    }
+
+    private void put(String filename, File file) {
+        synchronized (resourcesLock) {
+            Map<String, File> updated = new HashMap<>(resources);
+            updated.put(filename, file);
+            resources = Collections.unmodifiableMap(updated);
+        }
+    }
+
+    public void addChangeListener(Consumer<ResourceChange> listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(Consumer<ResourceChange> listener) {
+        changeListeners.remove(listener);
+    }
+
     private void shiftFiles() {
         info.getArray("required").stream(JSONArray::getString).forEach(this::shiftFile);
         shiftFile("info.json");
     }
 
     private void shiftFile(String resource) {
+        File file = dataDir.resolve(resource).toFile();
         try (InputStream input = Apex.class.getResource(resource).openStream()) {
-            try (OutputStream output = new FileOutputStream(Paths.get(dataDir.toString(), resource).toString())) {
+            try (OutputStream output = new FileOutputStream(file)) {
                 byte[] buffer = new byte[1024];
                 int read;
                 while ((read = input.read(buffer)) != -1) {
                     output.write(buffer, 0, read);
                 }
             }
+            put(resource, file);
         } catch (IOException e) {
             logger.warn("Unable to copy " + resource + " to the resource directory");
             e.printStackTrace();
@@ -148,10 +304,32 @@ public class Resources {
 
     public File create(String filename) {
         File file = dataDir.resolve(filename).toFile();
-        resources.put(filename, file);
+        put(filename, file);
         return file;
     }
 
+    // takes over a finished download: appended to the archive when there is one, else moved into the data directory
+    public TrackSource store(String filename, Path downloaded) throws IOException {
+        TrackArchive archive = this.archive;
+        if (archive != null) {
+            TrackSource source = TrackSource.of(downloaded.toFile());
+            Codec codec = Codecs.get().probe(source);
+            if (codec != null) {
+                int[] loopPoints = codec.readLoopPoints(source);
+                TrackArchive.Entry entry = archive.append(filename, downloaded, codec.getName(), loopPoints[0], loopPoints[1]);
+                Files.delete(downloaded);
+                ResourceChange change = new ResourceChange();
+                change.archive(entry);
+                publish(change);
+                return entry;
+            }
+        }
+        Path target = dataDir.resolve(filename);
+        Files.move(downloaded, target, StandardCopyOption.REPLACE_EXISTING);
+        put(filename, target.toFile());
+        return TrackSource.of(target.toFile());
+    }
+
     public boolean hasFile(String filename) {
         return resources.containsKey(filename);
     }
@@ -169,18 +347,75 @@ public class Resources {
         return resources;
     }
 
-    private List<OnlineTrack> getOnlineResources() throws IOException {
-        return JSONArray.parse(Downloader.download("https://api.github.com/repos/" + repo + "/contents/" + additionalRes, "contents.json", null))
-            .stream(JSONArray::getObject)
-            .map(jo -> new OnlineTrack(jo.getString("name"), jo.getLong("size")))
+    // null unless enabled with apex.archive
+    public TrackArchive getArchive() {
+        return archive;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public DownloadScheduler getDownloads() {
+        return downloads;
+    }
+
+    // the place of the id in the up next queue, the files the user is waiting to hear are downloaded first
+    private int queuePosition(String id) {
+        int position = playQueue.indexOf(id);
+        return position == -1 ? DownloadScheduler.BACKGROUND : position;
+    }
+
+    public PlayQueue getPlayQueue() {
+        return playQueue;
+    }
+
+    public SessionStore getSession() {
+        return session;
+    }
+
+    public RemoteCatalog getCatalog() {
+        return catalog;
+    }
+
+    // every playable track, where a loose file wins over an archived copy with the same id
+    public List<Track> getTracks() {
+        List<Track> tracks = resources.values()
+            .stream()
+            .filter(Playlist::isPlayable)
+            .map(Track::get)
             .collect(Collectors.toList());
+        if (archive != null) {
+            Set<String> ids = tracks.stream().map(Track::getId).collect(Collectors.toSet());
+            archive.getEntries()
+                .stream()
+                .filter(entry -> !ids.contains(Util.getId(entry.getName())))
+                .map(Track::get)
+                .forEach(tracks::add);
+        }
+        return tracks;
     }
 
     public List<OnlineTrack> getMissingTracks() {
-        List<String> availableIds = Apex.APEX.getPlaylist().stream().map(Track::getId).collect(Collectors.toList());
-        return Util.get(this::getOnlineResources).stream()
-            .filter(ot -> ot.getName().endsWith(".ogg"))
-            .filter(ot -> !availableIds.contains(Util.getId(ot.getName())))
-            .collect(Collectors.toList());
+        return getMissingTracks(false);
+    }
+
+    public List<OnlineTrack> getMissingTracks(boolean refresh) {
+        awaitReady();
+        return getMissingTracks(Apex.APEX.getPlaylist().snapshot(), refresh);
+    }
+
+    public List<OnlineTrack> getMissingTracks(Collection<Track> available, boolean refresh) {
+        Set<String> availableIds = available.stream().map(Track::getId).collect(Collectors.toSet());
+        List<OnlineTrack> missing = new ArrayList<>();
+        // only the missing entries are kept, the rest of the catalog is dropped as it is read
+        return Util.get(() -> {
+            catalog.forEach(refresh, ot -> {
+                if (Codecs.get().forFileName(ot.getName()) != null && !availableIds.contains(Util.getId(ot.getName()))) {
+                    missing.add(ot);
+                }
+            });
+            return missing;
+        });
     }
 }
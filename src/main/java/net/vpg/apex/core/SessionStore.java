@@ -0,0 +1,126 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+// What was playing when the app was last closed: the track, the frame and loop it was at, whether it was paused
+// and the shuffled playlist order. Updates are written on the io executor, updates arriving while a write is
+// pending are folded into it, and the file is only ever replaced as a whole.
+public class SessionStore {
+    private static final Logger logger = LoggerFactory.getLogger(SessionStore.class);
+    private final Path file;
+    private String track;
+    private int frame;
+    private int loops;
+    private boolean playing;
+    private List<String> order = Collections.emptyList();
+    // joined once when the order changes rather than on every save of the position
+    private String orderText = "";
+    private boolean pending = false;
+
+    public SessionStore(Path file) {
+        this.file = file;
+    }
+
+    public synchronized void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            track = properties.getProperty("track");
+            frame = Integer.parseInt(properties.getProperty("frame", "0"));
+            loops = Integer.parseInt(properties.getProperty("loops", "0"));
+            playing = Boolean.parseBoolean(properties.getProperty("playing", "true"));
+            orderText = properties.getProperty("order", "");
+            order = orderText.isEmpty() ? Collections.emptyList() : Arrays.asList(orderText.split(","));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read the last session, starting a new one", e);
+            track = null;
+        }
+    }
+
+    public synchronized void update(String track, int frame, int loops, boolean playing) {
+        this.track = track;
+        this.frame = frame;
+        this.loops = loops;
+        this.playing = playing;
+        schedule();
+    }
+
+    // empty while the playlist is sorted
+    public synchronized void setOrder(List<String> order) {
+        this.order = order;
+        this.orderText = String.join(",", order);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!pending) {
+            pending = true;
+            ApexExecutors.get().getIo().execute(this::save);
+        }
+    }
+
+    public synchronized void save() {
+        if (!pending) {
+            return;
+        }
+        pending = false;
+        Properties properties = new Properties();
+        properties.setProperty("track", track);
+        properties.setProperty("frame", Integer.toString(frame));
+        properties.setProperty("loops", Integer.toString(loops));
+        properties.setProperty("playing", Boolean.toString(playing));
+        properties.setProperty("order", orderText);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save the session", e);
+        }
+    }
+
+    public synchronized boolean hasTrack() {
+        return track != null;
+    }
+
+    public synchronized String getTrack() {
+        return track;
+    }
+
+    public synchronized int getFrame() {
+        return frame;
+    }
+
+    public synchronized int getLoops() {
+        return loops;
+    }
+
+    public synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    public synchronized List<String> getOrder() {
+        return order;
+    }
+}
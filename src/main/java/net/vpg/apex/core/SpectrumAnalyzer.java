@@ -0,0 +1,83 @@
+package net.vpg.apex.core;
+
+public class SpectrumAnalyzer {
+    private static final double MIN_FREQUENCY = 40;
+    private static final double MAX_FREQUENCY = 16000;
+    private static final double FLOOR_DB = -70;
+    private static final float DECAY = 0.85f;
+    private final AudioTap tap;
+    private final FFT fft;
+    private final double[] window;
+    private final double[] re;
+    private final double[] im;
+    private final int[] bandEdges;
+    private final float[] bands;
+    private float peak;
+    private float rms;
+
+    public SpectrumAnalyzer(AudioTap tap, float sampleRate, int bandCount) {
+        this.tap = tap;
+        int size = tap.getWindowSize();
+        fft = new FFT(size);
+        window = new double[size];
+        for (int i = 0; i < size; i++) {
+            window[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / (size - 1)); // Hann
+        }
+        re = new double[size];
+        im = new double[size];
+        bands = new float[bandCount];
+        bandEdges = new int[bandCount + 1];
+        double binWidth = sampleRate / size;
+        for (int i = 0; i <= bandCount; i++) {
+            double frequency = MIN_FREQUENCY * Math.pow(MAX_FREQUENCY / MIN_FREQUENCY, (double) i / bandCount);
+            bandEdges[i] = Math.min(size / 2, (int) Math.round(frequency / binWidth));
+        }
+    }
+
+    // returns false when the tap had nothing new, in which case the bands only decay
+    public boolean update() {
+        AudioTap.Frame frame = tap.poll();
+        if (frame == null) {
+            boolean changed = false;
+            for (int i = 0; i < bands.length; i++) {
+                changed |= bands[i] > 0.001f;
+                bands[i] *= DECAY;
+            }
+            peak *= DECAY;
+            rms *= DECAY;
+            return changed;
+        }
+        for (int i = 0; i < re.length; i++) {
+            re[i] = frame.samples[i] * window[i];
+            im[i] = 0;
+        }
+        fft.transform(re, im);
+        double reference = re.length / 4.0; // full scale sine through a Hann window
+        for (int band = 0; band < bands.length; band++) {
+            int from = bandEdges[band];
+            int to = Math.max(from + 1, bandEdges[band + 1]);
+            double power = 0;
+            for (int bin = from; bin < to; bin++) {
+                power = Math.max(power, re[bin] * re[bin] + im[bin] * im[bin]);
+            }
+            double db = 10 * Math.log10(power / (reference * reference) + 1e-12);
+            float level = (float) Math.max(0, Math.min(1, (db - FLOOR_DB) / -FLOOR_DB));
+            bands[band] = Math.max(level, bands[band] * DECAY);
+        }
+        peak = Math.max(frame.peak, peak * DECAY);
+        rms = Math.max(frame.rms, rms * DECAY);
+        return true;
+    }
+
+    public float[] getBands() {
+        return bands;
+    }
+
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getRms() {
+        return rms;
+    }
+}
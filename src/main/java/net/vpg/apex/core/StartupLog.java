@@ -0,0 +1,57 @@
+package net.vpg.apex.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class StartupLog {
+    private static final Logger logger = LoggerFactory.getLogger(StartupLog.class);
+    private static final long origin = ProcessHandle.current().info().startInstant()
+        .map(Instant::toEpochMilli)
+        .orElseGet(System::currentTimeMillis);
+    private static final Queue<Phase> phases = new ConcurrentLinkedQueue<>();
+
+    public static void time(String phase, Runnable action) {
+        long start = now();
+        try {
+            action.run();
+        } finally {
+            phases.add(new Phase(phase, start, now()));
+        }
+    }
+
+    public static void mark(String event) {
+        long time = now();
+        phases.add(new Phase(event, time, time));
+    }
+
+    public static void report() {
+        // java.vm.info ends with "sharing" when classes are mapped from a class data sharing archive
+        StringBuilder builder = new StringBuilder("Startup breakdown (ms since JVM start, " + System.getProperty("java.vm.info") + "):");
+        phases.stream()
+            .sorted(Comparator.comparingLong((Phase phase) -> phase.start).thenComparingLong(phase -> phase.end))
+            .forEach(phase -> builder.append(String.format("%n  %-22s at %6d  took %6d  on %s", phase.name, phase.start, phase.end - phase.start, phase.thread)));
+        logger.info(builder.toString());
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() - origin;
+    }
+
+    private static class Phase {
+        private final String name;
+        private final long start;
+        private final long end;
+        private final String thread = Thread.currentThread().getName();
+
+        private Phase(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package net.vpg.apex.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// A track that is still being downloaded, read from its part file while the DownloadScheduler appends to it.
+// A read past the bytes downloaded so far waits for them. The part file is held open from the start, so readers
+// keep working after the finished download was moved away; sources opened from then on read the stored copy.
+public class StreamingSource implements TrackSource {
+    private final String name;
+    private final long size;
+    private final FileChannel part;
+    private long available = 0;
+    // the furthest any reader has got, to tell how far the download is ahead of playback
+    private long readPosition = 0;
+    private int readers = 0;
+    private TrackSource stored;
+    private IOException failure;
+
+    StreamingSource(OnlineTrack track, Path part) throws IOException {
+        this.name = track.getName();
+        this.size = track.getSize();
+        Files.createDirectories(part.getParent());
+        this.part = FileChannel.open(part, CREATE, READ, WRITE);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getModified() {
+        return 0;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel open() throws IOException {
+        if (stored != null) {
+            return stored.open();
+        }
+        if (!part.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        readers++;
+        return new Reader();
+    }
+
+    @Override
+    public synchronized boolean isComplete() {
+        return stored != null;
+    }
+
+    @Override
+    public synchronized long getAvailable() {
+        return stored != null ? stored.getSize() : available;
+    }
+
+    // true once at least the given number of bytes are downloaded past the furthest reader, or nothing more will come
+    public synchronized boolean isBuffered(long bytes) {
+        return stored != null || failure != null || size > 0 && available >= size || available - readPosition >= bytes;
+    }
+
+    // the part file holds this many bytes now, fewer when a broken part was thrown away
+    synchronized void setAvailable(long available) {
+        this.available = available;
+        notifyAll();
+    }
+
+    synchronized void complete(TrackSource stored) {
+        this.stored = stored;
+        notifyAll();
+        closeIfUnused();
+    }
+
+    synchronized void fail(IOException failure) {
+        this.failure = failure;
+        notifyAll();
+        closeIfUnused();
+    }
+
+    private void closeIfUnused() {
+        if (readers == 0) {
+            try {
+                part.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (streaming)";
+    }
+
+    private class Reader implements SeekableByteChannel {
+        private long position = 0;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            long limit;
+            synchronized (StreamingSource.this) {
+                while (open && position >= available && stored == null && failure == null && (size <= 0 || available < size)) {
+                    try {
+                        StreamingSource.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the download of " + name);
+                    }
+                }
+                if (!open) {
+                    throw new ClosedChannelException();
+                }
+                if (position >= available && failure != null) {
+                    throw new IOException("The download of " + name + " failed", failure);
+                }
+                limit = available;
+            }
+            if (position >= limit) {
+                return -1;
+            }
+            int dstLimit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), limit - position));
+            try {
+                int read = part.read(dst, position);
+                if (read > 0) {
+                    position += read;
+                    synchronized (StreamingSource.this) {
+                        readPosition = Math.max(readPosition, position);
+                    }
+                }
+                return read;
+            } finally {
+                dst.limit(dstLimit);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        // the size the file will have, readers that look at the end wait for it
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            synchronized (StreamingSource.this) {
+                if (open) {
+                    open = false;
+                    readers--;
+                    StreamingSource.this.notifyAll();
+                    if (stored != null || failure != null) {
+                        closeIfUnused();
+                    }
+                }
+            }
+        }
+    }
+}
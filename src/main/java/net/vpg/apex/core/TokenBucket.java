@@ -0,0 +1,38 @@
+package net.vpg.apex.core;
+
+import java.util.concurrent.TimeUnit;
+
+// A rate in bytes per second shared by many threads. A caller takes what it needs at once and, when that leaves the
+// bucket in debt, sleeps until the debt is paid back, so the average rate holds however the reads are sized.
+class TokenBucket {
+    // bytes per nanosecond, 0 for no limit
+    private final double rate;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.rate = bytesPerSecond / 1e9;
+        // at most a quarter of a second can be saved up for a burst
+        this.capacity = bytesPerSecond / 4.0;
+        this.tokens = capacity;
+    }
+
+    // the nanoseconds spent waiting
+    long acquire(int bytes) throws InterruptedException {
+        if (rate <= 0) {
+            return 0;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate) - bytes;
+            refilledAt = now;
+            wait = tokens < 0 ? (long) (-tokens / rate) : 0;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        return wait;
+    }
+}
@@ -1,105 +1,208 @@
 package net.vpg.apex.core;
 
 import net.vpg.apex.Util;
-import net.vpg.vjson.value.JSONArray;
-import net.vpg.vjson.value.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 
+// A view of one row of the TrackTable
 public class Track {
-    public static final Pattern loopStartPattern = Pattern.compile("LOOPSTART=(\\d+)");
-    public static final Pattern loopEndPattern = Pattern.compile("LOOPEND=(\\d+)");
     private static final Logger logger = LoggerFactory.getLogger(Track.class);
-    public static final Map<String, Track> entries =
-        Util.compute(Resources.get("tracks.json"), JSONObject::parse)
-            .getArray("entries")
-            .stream(JSONArray::getObject)
-            .map(Track::new)
-            .collect(Collectors.toMap(Track::getId, info -> info));
-    private final String id;
-    private final String name;
-    private File file;
-    private boolean initDone = false;
-    private int loopStart = -1;
-    private int loopEnd = -1;
-
-    private Track(JSONObject data) {
-        id = data.getString("id");
-        name = data.getString("name");
-        logger.info("Loaded Track Info for ID: " + id);
+    private final TrackTable table;
+    private final int row;
+
+    Track(TrackTable table, int row) {
+        this.table = table;
+        this.row = row;
+    }
+
+    // streams the entries into the table, one {id, name} at a time
+    static void loadEntries(File file) {
+        TrackTable table = TrackTable.get();
+        try (JsonReader reader = new JsonReader(file.exists()
+            ? new FileInputStream(file)
+            : Track.class.getResourceAsStream("/net/vpg/apex/tracks.json"))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("entries")) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String id = null;
+                    String name = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "id":
+                                id = reader.nextString();
+                                break;
+                            case "name":
+                                name = reader.nextString();
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    if (id == null) {
+                        continue;
+                    }
+                    if (name == null) {
+                        name = "N/A";
+                    }
+                    table.setName(table.add(id, name), name);
+                    logger.info("Loaded Track Info for ID: " + id);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the track with the given id, null if there is none
+    public static Track forId(String id) {
+        TrackTable table = TrackTable.get();
+        int row = table.find(id);
+        return row == -1 ? null : table.view(row);
     }
 
     public static Track get(File file) {
-        String filename = file.getName();
-        Track info = entries.computeIfAbsent(Util.getId(filename), Track::makeDefaultInfo);
-        if (!info.isInitDone()) {
-            info.init(file);
+        return get(TrackSource.of(file));
+    }
+
+    public static Track get(TrackSource source) {
+        TrackTable table = TrackTable.get();
+        Track info = table.view(table.add(Util.getId(source.getName()), "N/A"));
+        TrackSource current = info.getSource();
+        if (!table.isInitDone(info.row) || current != source && !info.getMetadata().matches(source)) {
+            info.init(source);
+        } else {
+            table.setSource(info.row, source);
         }
         return info;
     }
 
-    private static Track makeDefaultInfo(String id) {
-        return new Track(new JSONObject()
-            .put("id", id)
-            .put("name", "N/A")
-            .put("description", "N/A"));
+    private void init(TrackSource source) {
+        MetadataCache cache = Resources.getInstance().getMetadataCache();
+        Codec codec;
+        int[] loopPoints;
+        if (source instanceof TrackArchive.Entry) {
+            // the archive recorded both when the track was added
+            TrackArchive.Entry entry = (TrackArchive.Entry) source;
+            codec = Codecs.get().forName(entry.getCodec());
+            loopPoints = new int[]{entry.getLoopStart(), entry.getLoopEnd()};
+        } else {
+            codec = Codecs.get().probe(source, cache);
+            loopPoints = readLoopPoints(codec, source);
+        }
+        TrackMetadata metadata = cache.get(source);
+        table.setLoop(row, loopPoints[0], loopPoints[1], false);
+        if (!hasTaggedLoop() && metadata.hasInferredLoop()) {
+            setInferredLoopPoints(metadata.getInferredLoopStart(), metadata.getInferredLoopEnd());
+        }
+        table.init(row, source, codec, metadata);
     }
 
-    private void init(File file) {
-        this.file = file;
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (loopStart == -1) {
-                    Matcher m = loopStartPattern.matcher(line);
-                    if (m.find())
-                        loopStart = Integer.parseInt(m.group(1));
-                }
-                if (loopEnd == -1) {
-                    Matcher m = loopEndPattern.matcher(line);
-                    if (m.find())
-                        loopEnd = Integer.parseInt(m.group(1));
-                }
-                if (loopStart != -1 && loopEnd != -1) {
-                    break;
-                }
-            }
+    static int[] readLoopPoints(File file) {
+        TrackSource source = TrackSource.of(file);
+        return readLoopPoints(Codecs.get().probe(source), source);
+    }
+
+    private static int[] readLoopPoints(Codec codec, TrackSource source) {
+        if (codec == null) {
+            return new int[]{-1, -1};
+        }
+        try {
+            return codec.readLoopPoints(source);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            throw new UncheckedIOException(e);
         }
-        initDone = true;
     }
 
-    private boolean isInitDone() {
-        return initDone;
+    // reads the whole track once so that opening it next is served from the OS cache
+    public void prefetch() {
+        TrackSource source = getSource();
+        try (InputStream input = source.openStream()) {
+            input.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            logger.warn("Unable to prefetch " + source, e);
+        }
+    }
+
+    private boolean hasTaggedLoop() {
+        return !isLoopInferred() && getLoopStart() != -1 && getLoopEnd() != -1;
+    }
+
+    void setInferredLoopPoints(int loopStart, int loopEnd) {
+        table.setLoop(row, loopStart, loopEnd, true);
+    }
+
+    public boolean needsLoopDetection() {
+        TrackMetadata metadata = getMetadata();
+        return metadata != null && !hasTaggedLoop() && !metadata.hasLoopDetection();
+    }
+
+    public boolean isLoopInferred() {
+        return table.isLoopInferred(row);
+    }
+
+    public TrackSource getSource() {
+        return table.getSource(row);
     }
 
+    // null for tracks stored in the archive
     public File getFile() {
-        return file;
+        TrackSource source = getSource();
+        return source == null ? null : source.getFile();
+    }
+
+    public Codec getCodec() {
+        return table.getCodec(row);
+    }
+
+    public TrackMetadata getMetadata() {
+        return table.getMetadata(row);
+    }
+
+    int getRow() {
+        return row;
+    }
+
+    public float getNormalizationGain() {
+        TrackMetadata metadata = getMetadata();
+        if (!LoudnessAnalyzer.NORMALIZE || metadata == null || !metadata.hasLoudness()) {
+            return 1;
+        }
+        double gain = Math.pow(10, (LoudnessAnalyzer.TARGET_LOUDNESS - metadata.getLoudness()) / 20);
+        if (metadata.getPeak() > 0) {
+            gain = Math.min(gain, 1 / metadata.getPeak());
+        }
+        return (float) Math.min(gain, LoudnessAnalyzer.MAX_GAIN);
     }
 
     public String getId() {
-        return id;
+        return table.getId(row);
     }
 
     public String getName() {
-        return name;
+        return table.getName(row);
     }
 
     public int getLoopStart() {
-        return loopStart;
+        return table.getLoopStart(row);
     }
 
     public int getLoopEnd() {
-        return loopEnd;
+        return table.getLoopEnd(row);
     }
 }
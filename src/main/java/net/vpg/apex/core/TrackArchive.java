@@ -0,0 +1,291 @@
+package net.vpg.apex.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Many tracks packed into one file, opened once and read with positional reads.
+// Layout: an 8 byte magic and the offset of the index, then the tracks' bytes, then the index, which runs to the end
+// of the file and holds name, offset, size, time added, codec and loop points of every track. Adding a track writes
+// its bytes and a new index after the old one and only then points the header at it, so an interrupted append
+// leaves the archive as it was. Replaced tracks and old indexes stay behind as unreferenced bytes.
+public class TrackArchive implements Closeable {
+    private static final long MAGIC = 0x4150455850414B31L; // "APEXPAK1"
+    private static final int HEADER_SIZE = 16;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    private TrackArchive(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    public static TrackArchive open(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        FileChannel channel = FileChannel.open(path, READ, WRITE, CREATE);
+        TrackArchive archive = new TrackArchive(path, channel);
+        try {
+            if (channel.size() == 0) {
+                archive.writeHeader(0);
+            } else {
+                archive.readIndex();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return archive;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+
+    // copies the file in and makes it visible with one write of the header
+    public synchronized Entry append(String name, Path file, String codec, int loopStart, int loopEnd) throws IOException {
+        long offset = channel.size();
+        long size;
+        try (FileChannel input = FileChannel.open(file, READ)) {
+            size = input.size();
+            for (long copied = 0; copied < size; ) {
+                copied += channel.transferFrom(input, offset + copied, size - copied);
+            }
+        }
+        Entry entry = new Entry(name, offset, size, System.currentTimeMillis(), codec, loopStart, loopEnd);
+        Map<String, Entry> updated = new LinkedHashMap<>(entries);
+        updated.put(name, entry);
+        long indexOffset = offset + size;
+        write(indexOffset, ByteBuffer.wrap(encodeIndex(updated.values())));
+        channel.force(false);
+        writeHeader(indexOffset);
+        channel.force(false);
+        entries = Collections.unmodifiableMap(updated);
+        return entry;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        read(header, 0);
+        if (header.getLong(0) != MAGIC) {
+            throw new IOException(path + " is not a track archive");
+        }
+        long indexOffset = header.getLong(8);
+        if (indexOffset == 0) {
+            return;
+        }
+        long indexSize = channel.size() - indexOffset;
+        if (indexOffset < HEADER_SIZE || indexSize < 4 || indexSize > Integer.MAX_VALUE) {
+            throw new IOException("Corrupt index in " + path);
+        }
+        ByteBuffer index = ByteBuffer.allocate((int) indexSize);
+        read(index, indexOffset);
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+            int count = input.readInt();
+            Map<String, Entry> loaded = new LinkedHashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(input.readUTF(), input.readLong(), input.readLong(), input.readLong(), input.readUTF(), input.readInt(), input.readInt());
+                loaded.put(entry.name, entry);
+            }
+            entries = Collections.unmodifiableMap(loaded);
+        }
+    }
+
+    private static byte[] encodeIndex(Collection<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(entries.size());
+            for (Entry entry : new ArrayList<>(entries)) {
+                output.writeUTF(entry.name);
+                output.writeLong(entry.offset);
+                output.writeLong(entry.size);
+                output.writeLong(entry.modified);
+                output.writeUTF(entry.codec);
+                output.writeInt(entry.loopStart);
+                output.writeInt(entry.loopEnd);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeHeader(long indexOffset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putLong(MAGIC).putLong(indexOffset);
+        header.flip();
+        write(0, header);
+    }
+
+    private void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            position += read;
+        }
+    }
+
+    public class Entry implements TrackSource {
+        private final String name;
+        private final long offset;
+        private final long size;
+        private final long modified;
+        private final String codec;
+        private final int loopStart;
+        private final int loopEnd;
+
+        private Entry(String name, long offset, long size, long modified, String codec, int loopStart, int loopEnd) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.modified = modified;
+            this.codec = codec;
+            this.loopStart = loopStart;
+            this.loopEnd = loopEnd;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public long getModified() {
+            return modified;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public int getLoopStart() {
+            return loopStart;
+        }
+
+        public int getLoopEnd() {
+            return loopEnd;
+        }
+
+        @Override
+        public SeekableByteChannel open() {
+            return new Region(offset, size);
+        }
+
+        @Override
+        public String toString() {
+            return path + "!" + name;
+        }
+    }
+
+    // a read only window on the archive, positional reads let any number of them share the one channel
+    private class Region implements SeekableByteChannel {
+        private final long offset;
+        private final long size;
+        private long position = 0;
+        private boolean open = true;
+
+        private Region(long offset, long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), size - position));
+            try {
+                int read = channel.read(dst, offset + position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.vpg.apex.core;
+
+public class TrackMetadata {
+    private final String name;
+    private final long size;
+    private final long modified;
+    private double loudness = Double.NaN;
+    private double peak = Double.NaN;
+    // -2 while detection has not run, -1 when it found no loop
+    private int inferredLoopStart = -2;
+    private int inferredLoopEnd = -2;
+    private String codec; // null until the file was probed
+
+    TrackMetadata(String name, long size, long modified) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    static TrackMetadata of(TrackSource source) {
+        return new TrackMetadata(source.getName(), source.getSize(), source.getModified());
+    }
+
+    boolean matches(TrackSource source) {
+        return size == source.getSize() && modified == source.getModified();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public boolean hasLoudness() {
+        return !Double.isNaN(loudness);
+    }
+
+    public double getLoudness() {
+        return loudness;
+    }
+
+    public double getPeak() {
+        return peak;
+    }
+
+    void setLoudness(double loudness, double peak) {
+        this.loudness = loudness;
+        this.peak = peak;
+    }
+
+    public boolean hasLoopDetection() {
+        return inferredLoopStart != -2;
+    }
+
+    public boolean hasInferredLoop() {
+        return inferredLoopStart >= 0 && inferredLoopEnd > inferredLoopStart;
+    }
+
+    public int getInferredLoopStart() {
+        return inferredLoopStart;
+    }
+
+    public int getInferredLoopEnd() {
+        return inferredLoopEnd;
+    }
+
+    void setInferredLoop(int start, int end) {
+        this.inferredLoopStart = start;
+        this.inferredLoopEnd = end;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    void setCodec(String codec) {
+        this.codec = codec;
+    }
+}
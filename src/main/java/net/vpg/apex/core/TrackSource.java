@@ -0,0 +1,42 @@
+package net.vpg.apex.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+
+// The bytes of a track, either a file of its own, a region of the TrackArchive or a download in progress
+public interface TrackSource {
+    static TrackSource of(File file) {
+        return new FileSource(file);
+    }
+
+    // the file name, which the track id is derived from
+    String getName();
+
+    long getSize();
+
+    long getModified();
+
+    SeekableByteChannel open() throws IOException;
+
+    default InputStream openStream() throws IOException {
+        return Channels.newInputStream(open());
+    }
+
+    // false while the end of the track may still be on its way, readers should not look for it then
+    default boolean isComplete() {
+        return true;
+    }
+
+    // bytes from the start that can be read without waiting for them
+    default long getAvailable() {
+        return getSize();
+    }
+
+    // for readers that only accept files, null when the track is not a file of its own
+    default File getFile() {
+        return null;
+    }
+}
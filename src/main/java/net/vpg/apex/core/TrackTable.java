@@ -0,0 +1,296 @@
+package net.vpg.apex.core;
+
+import java.util.Arrays;
+
+// Every known track as one row of parallel arrays. Ids and display names share a single char pool, loop points and
+// flags are packed into primitive columns and ids are looked up through an open addressing table of row numbers,
+// so a library of thousands of tracks costs a few arrays instead of a few objects per track.
+// Track is a view of one row; the view of a row is created once so tracks can still be compared by identity.
+public class TrackTable {
+    private static final TrackTable instance = new TrackTable();
+    private static final byte INIT_DONE = 1;
+    private static final byte LOOP_INFERRED = 2;
+    private char[] chars = new char[4096];
+    private int charCount = 0;
+    private int size = 0;
+    // idStart, idLength, nameStart, nameLength per row
+    private int[] strings = new int[64 * 4];
+    // loopStart, loopEnd per row
+    private int[] loops = new int[64 * 2];
+    private byte[] flags = new byte[64];
+    private TrackSource[] sources = new TrackSource[64];
+    private Codec[] codecs = new Codec[64];
+    private TrackMetadata[] metadata = new TrackMetadata[64];
+    private Track[] views = new Track[64];
+    // row + 1 per slot, 0 for a free slot, never more than half full
+    private int[] slots = new int[128];
+
+    TrackTable() {
+    }
+
+    public static TrackTable get() {
+        return instance;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // the row of the id, -1 if there is none
+    public synchronized int find(String id) {
+        int mask = slots.length - 1;
+        for (int slot = hash(id) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (idEquals(row, id)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    // the row of the id, added with the given name when the id is new
+    public synchronized int add(String id, String name) {
+        int row = find(id);
+        if (row != -1) {
+            return row;
+        }
+        row = size++;
+        if (row == flags.length) {
+            grow();
+        }
+        strings[row * 4] = intern(id);
+        strings[row * 4 + 1] = id.length();
+        strings[row * 4 + 2] = intern(name);
+        strings[row * 4 + 3] = name.length();
+        loops[row * 2] = -1;
+        loops[row * 2 + 1] = -1;
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            insert(row);
+        }
+        return row;
+    }
+
+    public synchronized void setName(int row, String name) {
+        if (!regionEquals(strings[row * 4 + 2], strings[row * 4 + 3], name)) {
+            strings[row * 4 + 2] = intern(name);
+            strings[row * 4 + 3] = name.length();
+        }
+    }
+
+    public synchronized Track view(int row) {
+        Track view = views[row];
+        return view != null ? view : (views[row] = new Track(this, row));
+    }
+
+    public synchronized String getId(int row) {
+        return new String(chars, strings[row * 4], strings[row * 4 + 1]);
+    }
+
+    public synchronized String getName(int row) {
+        return new String(chars, strings[row * 4 + 2], strings[row * 4 + 3]);
+    }
+
+    public synchronized int compareIds(int a, int b) {
+        return compare(strings[a * 4], strings[a * 4 + 1], strings[b * 4], strings[b * 4 + 1]);
+    }
+
+    // sorts rows by id, breaking ties of the given rank first if there is one
+    public synchronized void sort(int[] rows, int count, int[] ranks) {
+        mergeSort(rows, Arrays.copyOf(rows, count), 0, count, ranks);
+    }
+
+    // the first of the rows in [start, end) whose id contains the text, else whose lower case name does, or -1
+    public synchronized int search(int[] rows, int start, int end, String text) {
+        for (int i = start; i < end; i++) {
+            if (contains(strings[rows[i] * 4], strings[rows[i] * 4 + 1], text, false)) {
+                return i;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (contains(strings[rows[i] * 4 + 2], strings[rows[i] * 4 + 3], text, true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized int getLoopStart(int row) {
+        return loops[row * 2];
+    }
+
+    synchronized int getLoopEnd(int row) {
+        return loops[row * 2 + 1];
+    }
+
+    synchronized void setLoop(int row, int start, int end, boolean inferred) {
+        loops[row * 2] = start;
+        loops[row * 2 + 1] = end;
+        flags[row] = (byte) (inferred ? flags[row] | LOOP_INFERRED : flags[row] & ~LOOP_INFERRED);
+    }
+
+    synchronized boolean isLoopInferred(int row) {
+        return (flags[row] & LOOP_INFERRED) != 0;
+    }
+
+    synchronized boolean isInitDone(int row) {
+        return (flags[row] & INIT_DONE) != 0;
+    }
+
+    synchronized void init(int row, TrackSource source, Codec codec, TrackMetadata metadata) {
+        sources[row] = source;
+        codecs[row] = codec;
+        this.metadata[row] = metadata;
+        flags[row] |= INIT_DONE;
+    }
+
+    synchronized TrackSource getSource(int row) {
+        return sources[row];
+    }
+
+    synchronized void setSource(int row, TrackSource source) {
+        sources[row] = source;
+    }
+
+    synchronized Codec getCodec(int row) {
+        return codecs[row];
+    }
+
+    synchronized TrackMetadata getMetadata(int row) {
+        return metadata[row];
+    }
+
+    private void grow() {
+        int capacity = flags.length * 2;
+        strings = Arrays.copyOf(strings, capacity * 4);
+        loops = Arrays.copyOf(loops, capacity * 2);
+        flags = Arrays.copyOf(flags, capacity);
+        sources = Arrays.copyOf(sources, capacity);
+        codecs = Arrays.copyOf(codecs, capacity);
+        metadata = Arrays.copyOf(metadata, capacity);
+        views = Arrays.copyOf(views, capacity);
+    }
+
+    private int intern(String text) {
+        if (charCount + text.length() > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + text.length()));
+        }
+        text.getChars(0, text.length(), chars, charCount);
+        charCount += text.length();
+        return charCount - text.length();
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int row = 0; row < size; row++) {
+            insert(row);
+        }
+    }
+
+    private void insert(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(chars, strings[row * 4], strings[row * 4 + 1]) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = row + 1;
+    }
+
+    private boolean idEquals(int row, String id) {
+        return regionEquals(strings[row * 4], strings[row * 4 + 1], id);
+    }
+
+    private boolean regionEquals(int start, int length, String text) {
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(int start, int length, String text, boolean lowerCase) {
+        int textLength = text.length();
+        if (textLength == 0) {
+            return true;
+        }
+        char first = text.charAt(0);
+        for (int from = start, last = start + length - textLength; from <= last; from++) {
+            if (fold(chars[from], lowerCase) != first) {
+                continue;
+            }
+            int i = 1;
+            while (i < textLength && fold(chars[from + i], lowerCase) == text.charAt(i)) {
+                i++;
+            }
+            if (i == textLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static char fold(char c, boolean lowerCase) {
+        if (!lowerCase) {
+            return c;
+        }
+        return c < 128 ? (c >= 'A' && c <= 'Z' ? (char) (c + 32) : c) : Character.toLowerCase(c);
+    }
+
+    private int compare(int aStart, int aLength, int bStart, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int difference = chars[aStart + i] - chars[bStart + i];
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    private int compareRows(int a, int b, int[] ranks) {
+        if (ranks != null && ranks[a] != ranks[b]) {
+            return Integer.compare(ranks[a], ranks[b]);
+        }
+        return compareIds(a, b);
+    }
+
+    // top down merge sort of [from, to) of target, with source holding the same rows
+    private void mergeSort(int[] target, int[] source, int from, int to, int[] ranks) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(source, target, from, middle, ranks);
+        mergeSort(source, target, middle, to, ranks);
+        for (int i = from, left = from, right = middle; i < to; i++) {
+            if (right >= to || left < middle && compareRows(source[left], source[right], ranks) <= 0) {
+                target[i] = source[left++];
+            } else {
+                target[i] = source[right++];
+            }
+        }
+    }
+
+    private static int hash(String id) {
+        return mix(id.hashCode());
+    }
+
+    private static int hash(char[] chars, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[start + i];
+        }
+        return mix(hash);
+    }
+
+    // ids differ mostly in their last characters, spread those over the low bits the mask keeps
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,81 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+public class VorbisCodec implements Codec {
+    @Override
+    public String getName() {
+        return "vorbis";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("ogg", "oga");
+    }
+
+    // an Ogg page whose first packet is the Vorbis identification header
+    @Override
+    public boolean probe(byte[] header, int length) {
+        if (!Codecs.startsWith(header, length, 0, "OggS") || length < 27) {
+            return false;
+        }
+        int packet = 27 + (header[26] & 0xFF);
+        return packet < length && header[packet] == 1 && Codecs.startsWith(header, length, packet + 1, "vorbis");
+    }
+
+    @Override
+    public int[] readLoopPoints(TrackSource source) throws IOException {
+        try (VorbisDecoder decoder = new VorbisDecoder(source)) {
+            return Codecs.toFormatRate(readLoopTags(decoder.getComments()), decoder.getFormat().getSampleRate(), Apex.AUDIO_FORMAT);
+        }
+    }
+
+    @Override
+    public AudioInputStream open(TrackSource source, AudioFormat format, long startFrame) throws IOException, UnsupportedAudioFileException {
+        VorbisDecoder decoder;
+        try {
+            decoder = new VorbisDecoder(source);
+        } catch (IOException | RuntimeException e) {
+            return Codecs.openWithSpi(source, format, startFrame);
+        }
+        if (!decoder.getFormat().matches(format)) {
+            decoder.close();
+            return Codecs.openWithSpi(source, format, startFrame);
+        }
+        if (startFrame > 0) {
+            decoder.seek(startFrame);
+        }
+        // the length is read from the last page, which a download in progress does not have yet
+        long length = source.isComplete() ? decoder.getFrameLength() : -1;
+        return new AudioInputStream(decoder, format, length == -1 ? AudioSystem.NOT_SPECIFIED : Math.max(0, length - startFrame));
+    }
+
+    // LOOPSTART and LOOPEND comments, also when prefixed like XIPH_CUE_LOOPSTART, as FLAC uses the same comments
+    static int[] readLoopTags(List<String> comments) {
+        int[] loopPoints = {-1, -1};
+        for (String comment : comments) {
+            int separator = comment.indexOf('=');
+            if (separator == -1) {
+                continue;
+            }
+            String key = comment.substring(0, separator).toUpperCase(Locale.ROOT);
+            int index = key.endsWith("LOOPSTART") ? 0 : key.endsWith("LOOPEND") ? 1 : -1;
+            if (index != -1 && loopPoints[index] == -1) {
+                try {
+                    loopPoints[index] = Integer.parseInt(comment.substring(separator + 1).trim());
+                } catch (NumberFormatException e) {
+                    // not a frame number, ignore it
+                }
+            }
+        }
+        return loopPoints;
+    }
+}
@@ -0,0 +1,323 @@
+package net.vpg.apex.core;
+
+import com.github.trilarion.sound.vorbis.jcraft.jogg.Packet;
+import com.github.trilarion.sound.vorbis.jcraft.jogg.Page;
+import com.github.trilarion.sound.vorbis.jcraft.jogg.StreamState;
+import com.github.trilarion.sound.vorbis.jcraft.jogg.SyncState;
+import com.github.trilarion.sound.vorbis.jcraft.jorbis.Block;
+import com.github.trilarion.sound.vorbis.jcraft.jorbis.Comment;
+import com.github.trilarion.sound.vorbis.jcraft.jorbis.DspState;
+import com.github.trilarion.sound.vorbis.jcraft.jorbis.Info;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Ogg Vorbis decoder on top of jorbis, producing 16 bit little endian PCM. Unlike the sound SPI it can seek:
+// the page to restart from is found by bisecting the file on page granule positions, and the exact position
+// of the decoded samples is known again at the end of the first page decoded after the jump.
+public class VorbisDecoder extends InputStream {
+    private static final int CHUNK = 8192;
+    private static final int PROBE_LIMIT = 65536;
+    private final TrackSource source;
+    private final SeekableByteChannel channel;
+    private final SyncState sync = new SyncState();
+    private final StreamState stream = new StreamState();
+    private final Page page = new Page();
+    private final Packet packet = new Packet();
+    private final Info info = new Info();
+    private final Comment comment = new Comment();
+    private final DspState dsp = new DspState();
+    private final Block block = new Block(dsp);
+    private final float[][][] pcm = new float[1][][];
+    private final int[] pcmIndex;
+    private final AudioFormat format;
+    private final long dataStart;
+    private final long length;
+    private long frameLength = -2; // -2 until the end of the file was looked at
+    private byte[] pending = new byte[CHUNK * 4];
+    private int pendingStart = 0;
+    private int pendingEnd = 0;
+    // absolute frame of the first pending byte, -1 while unknown right after a seek
+    private long position = 0;
+    private long seekTarget = 0;
+    private boolean endOfStream = false;
+    private boolean synthesisReady = false; // set up on the first packet, reading only the headers is much cheaper
+
+    public VorbisDecoder(File file) throws IOException {
+        this(TrackSource.of(file));
+    }
+
+    public VorbisDecoder(TrackSource source) throws IOException {
+        this.source = source;
+        channel = source.open();
+        length = channel.size();
+        try {
+            sync.init();
+            info.init();
+            comment.init();
+            long headerEnd = 0;
+            for (int headers = 0; headers < 3; ) {
+                if (!nextPage()) {
+                    throw new IOException("Unexpected end of stream in the Vorbis headers of " + source);
+                }
+                if (headers == 0) {
+                    stream.init(page.serialno());
+                }
+                stream.pagein(page);
+                headerEnd = channel.position() - (sync.getBufferOffset() - sync.getDataOffset());
+                while (headers < 3 && stream.packetout(packet) == 1) {
+                    if (info.synthesis_headerin(comment, packet) < 0) {
+                        throw new IOException(source + " is not a Vorbis stream");
+                    }
+                    headers++;
+                }
+            }
+            dataStart = headerEnd;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        pcmIndex = new int[info.channels];
+        format = new AudioFormat(info.rate, 16, info.channels, true, false);
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public List<String> getComments() {
+        List<String> comments = new ArrayList<>(comment.comments);
+        for (int i = 0; i < comment.comments; i++) {
+            comments.add(comment.getComment(i));
+        }
+        return comments;
+    }
+
+    // frames in the whole stream, -1 if the file ends without a page carrying a granule position
+    public long getFrameLength() throws IOException {
+        if (frameLength == -2) {
+            long resume = channel.position();
+            frameLength = readFrameLength();
+            channel.position(resume);
+        }
+        return frameLength;
+    }
+
+    // absolute frame of the next frame returned by read
+    public long getPosition() {
+        return position;
+    }
+
+    public void seek(long frame) throws IOException {
+        int frameSize = format.getFrameSize();
+        long pendingFrames = (pendingEnd - pendingStart) / frameSize;
+        if (position != -1 && frame >= position && frame <= position + pendingFrames) {
+            pendingStart += (int) (frame - position) * frameSize;
+            position = frame;
+            return;
+        }
+        // restart a couple of blocks early, the first packet after a restart produces no output. A track that is
+        // still downloading is only searched as far as it arrived, the rest is decoded on from the last page there
+        long limit = source.isComplete() ? length : Math.min(length, source.getAvailable());
+        channel.position(findPage(frame - 4096, limit));
+        sync.reset();
+        stream.reset();
+        dsp.synthesis_init(info);
+        block.init(dsp);
+        synthesisReady = true;
+        pendingStart = pendingEnd = 0;
+        position = -1;
+        seekTarget = frame;
+        endOfStream = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int frameSize = format.getFrameSize();
+        length -= length % frameSize;
+        while (pendingEnd - pendingStart == 0 || position == -1 || position < seekTarget) {
+            if (endOfStream || !decodePacket()) {
+                endOfStream = true;
+                if (position == -1 || position < seekTarget || pendingEnd == pendingStart) {
+                    return -1;
+                }
+            }
+        }
+        int count = Math.min(length, pendingEnd - pendingStart);
+        System.arraycopy(pending, pendingStart, buffer, offset, count);
+        pendingStart += count;
+        position += count / frameSize;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return position == -1 ? 0 : pendingEnd - pendingStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean decodePacket() throws IOException {
+        if (!synthesisReady) {
+            dsp.synthesis_init(info);
+            block.init(dsp);
+            synthesisReady = true;
+        }
+        while (true) {
+            int result = stream.packetout(packet);
+            if (result == 1) {
+                break;
+            }
+            if (result == 0) {
+                if (!nextPage()) {
+                    return false;
+                }
+                stream.pagein(page);
+            }
+        }
+        if (block.synthesis(packet) == 0) {
+            dsp.synthesis_blockin(block);
+        }
+        int samples;
+        while ((samples = dsp.synthesis_pcmout(pcm, pcmIndex)) > 0) {
+            append(pcm[0], samples);
+            dsp.synthesis_read(samples);
+        }
+        int frameSize = format.getFrameSize();
+        if (position == -1 && packet.granulepos != -1) {
+            // the granule position is the frame right after everything decoded so far
+            position = packet.granulepos - (pendingEnd - pendingStart) / frameSize;
+        }
+        if (position != -1 && position < seekTarget) {
+            long skip = Math.min(seekTarget - position, (pendingEnd - pendingStart) / frameSize);
+            pendingStart += (int) skip * frameSize;
+            position += skip;
+        }
+        return true;
+    }
+
+    private void append(float[][] samples, int count) {
+        int channels = info.channels;
+        int bytes = count * channels * 2;
+        if (pendingEnd + bytes > pending.length) {
+            int live = pendingEnd - pendingStart;
+            byte[] target = live + bytes > pending.length ? new byte[Math.max(pending.length * 2, live + bytes)] : pending;
+            System.arraycopy(pending, pendingStart, target, 0, live);
+            pending = target;
+            pendingStart = 0;
+            pendingEnd = live;
+        }
+        // frame by frame, so the output is written sequentially
+        byte[] pending = this.pending;
+        for (int i = 0, j = pendingEnd; i < count; i++) {
+            for (int c = 0; c < channels; c++, j += 2) {
+                int value = (int) (samples[c][pcmIndex[c] + i] * 32767.0);
+                if (value > 32767) {
+                    value = 32767;
+                } else if (value < -32768) {
+                    value = -32768;
+                }
+                pending[j] = (byte) value;
+                pending[j + 1] = (byte) (value >>> 8);
+            }
+        }
+        pendingEnd += bytes;
+    }
+
+    private boolean nextPage() throws IOException {
+        while (true) {
+            int result = sync.pageout(page);
+            if (result == 1) {
+                return true;
+            }
+            if (result == 0 && !fill(sync)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean fill(SyncState state) throws IOException {
+        int index = state.buffer(CHUNK);
+        int read = channel.read(ByteBuffer.wrap(state.data, index, CHUNK));
+        if (read <= 0) {
+            return false;
+        }
+        state.wrote(read);
+        return true;
+    }
+
+    // offset of the last page before the limit whose granule position lies before the given frame, or the first
+    // audio page
+    private long findPage(long frame, long limit) throws IOException {
+        long low = dataStart;
+        long high = limit;
+        long best = dataStart;
+        while (high - low > CHUNK) {
+            long middle = (low + high) >>> 1;
+            long[] found = probe(middle, high, limit);
+            if (found == null || found[1] >= frame) {
+                high = middle;
+            } else {
+                best = found[0];
+                low = found[0] + 1;
+            }
+        }
+        return best;
+    }
+
+    // the granule position of the last page, found by probing backwards from the end of the file
+    private long readFrameLength() throws IOException {
+        for (long from = Math.max(dataStart, length - CHUNK); ; from = Math.max(dataStart, from - CHUNK * 4)) {
+            long granule = -1;
+            long[] found;
+            for (long offset = from; (found = probe(offset, length, length)) != null; offset = found[0] + 1) {
+                granule = found[1];
+            }
+            if (granule != -1 || from == dataStart) {
+                return granule;
+            }
+        }
+    }
+
+    // {offset, granule position} of the first page starting at or after the given offset and before the limit that
+    // ends a packet. Nothing at or after the end is read
+    private long[] probe(long offset, long limit, long end) throws IOException {
+        SyncState probe = new SyncState();
+        probe.init();
+        channel.position(offset);
+        long pageOffset = offset;
+        Page candidate = new Page();
+        for (long read = 0; pageOffset < limit; ) {
+            int result = probe.pageseek(candidate);
+            if (result < 0) {
+                pageOffset -= result;
+            } else if (result > 0) {
+                if (candidate.granulepos() != -1) {
+                    return new long[]{pageOffset, candidate.granulepos()};
+                }
+                pageOffset += result;
+            } else {
+                if (read > PROBE_LIMIT || channel.position() >= end || !fill(probe)) {
+                    return null;
+                }
+                read += CHUNK;
+            }
+        }
+        return null;
+    }
+}
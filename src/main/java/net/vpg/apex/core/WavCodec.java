@@ -0,0 +1,85 @@
+package net.vpg.apex.core;
+
+import net.vpg.apex.Apex;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+// Loop points come from the first loop of the smpl chunk, decoding is done by the JDK's own WAV reader
+public class WavCodec implements Codec {
+    @Override
+    public String getName() {
+        return "wav";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("wav");
+    }
+
+    @Override
+    public boolean probe(byte[] header, int length) {
+        return Codecs.startsWith(header, length, 0, "RIFF") && Codecs.startsWith(header, length, 8, "WAVE");
+    }
+
+    @Override
+    public int[] readLoopPoints(TrackSource source) throws IOException {
+        try (SeekableByteChannel channel = source.open()) {
+            // the chunk header and the start of its data, which for the fmt chunk holds the sample rate at 4
+            ByteBuffer chunkHeader = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            float rate = 0;
+            // chunks follow the 12 byte RIFF header, each padded to an even length
+            for (long position = 12; position + 8 <= channel.size(); ) {
+                chunkHeader.clear();
+                if (channel.position(position).read(chunkHeader) < 8) {
+                    break;
+                }
+                long size = chunkHeader.getInt(4) & 0xFFFFFFFFL;
+                if (isChunk(chunkHeader, "fmt ") && chunkHeader.position() == 16) {
+                    rate = chunkHeader.getInt(12) & 0xFFFFFFFFL;
+                }
+                if (isChunk(chunkHeader, "smpl")) {
+                    return Codecs.toFormatRate(readSampleChunk(channel, position + 8, size), rate, Apex.AUDIO_FORMAT);
+                }
+                position += 8 + size + (size & 1);
+            }
+        }
+        return new int[]{-1, -1};
+    }
+
+    @Override
+    public AudioInputStream open(TrackSource source, AudioFormat format, long startFrame) throws IOException, UnsupportedAudioFileException {
+        return Codecs.openWithSpi(source, format, startFrame);
+    }
+
+    private static boolean isChunk(ByteBuffer chunkHeader, String id) {
+        for (int i = 0; i < 4; i++) {
+            if (chunkHeader.get(i) != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 36 bytes of sampler data, the number of loops at 28, then 24 bytes per loop with its start and end at 8 and 12
+    private static int[] readSampleChunk(SeekableByteChannel channel, long position, long size) throws IOException {
+        if (size < 60) {
+            return new int[]{-1, -1};
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(60).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(position);
+        while (chunk.hasRemaining() && channel.read(chunk) > 0) {
+        }
+        if (chunk.hasRemaining() || chunk.getInt(28) == 0) {
+            return new int[]{-1, -1};
+        }
+        // dwEnd names the last frame of the loop, the clip's loop end is the frame after it
+        return new int[]{chunk.getInt(44), chunk.getInt(48) + 1};
+    }
+}
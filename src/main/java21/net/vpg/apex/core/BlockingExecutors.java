@@ -0,0 +1,19 @@
+package net.vpg.apex.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Java 21 version of BlockingExecutors, picked up from META-INF/versions/21 of the multi-release jar.
+// Virtual threads are cheap to block, so every task gets its own and there is no pool to size.
+public class BlockingExecutors {
+    private BlockingExecutors() {
+    }
+
+    public static boolean isVirtual() {
+        return true;
+    }
+
+    static ExecutorService create(String type) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Apex " + type + " Virtual Thread: ", 1).factory());
+    }
+}
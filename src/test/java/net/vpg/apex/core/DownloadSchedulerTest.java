@@ -0,0 +1,340 @@
+package net.vpg.apex.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Drives the scheduler against local HTTP servers and directories standing in for the mirrors
+class DownloadSchedulerTest {
+    private static final String NAME = "bgm_test.ogg";
+    private static final byte[] BODY = new byte[200_000];
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<String> stored = new CopyOnWriteArrayList<>();
+    @TempDir
+    Path temp;
+
+    static {
+        new Random(42).nextBytes(BODY);
+    }
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(server -> server.stop(0));
+        executor.shutdownNow();
+    }
+
+    @Test
+    void failedMirrorIsBackedOffAndAnotherOneUsed() throws Exception {
+        Mirror failing = serve(exchange -> respond(exchange, 503, new byte[0]));
+        Mirror working = serve(file(new ArrayList<>()));
+        download(scheduler(failing, working));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(1, failing.getFailures());
+        assertTrue(failing.getRetryAt() - System.nanoTime() > 0, "the failed mirror is backed off");
+        assertFalse(Double.isNaN(working.getThroughput()), "the working mirror was measured");
+    }
+
+    @Test
+    void mirrorWithoutTheFileIsSkippedWithoutBackingOff() throws Exception {
+        Mirror missing = serve(exchange -> respond(exchange, 404, new byte[0]));
+        Mirror working = serve(file(new ArrayList<>()));
+        download(scheduler(missing, working));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(0, missing.getFailures());
+    }
+
+    @Test
+    void failsWhenNoMirrorHasTheFile() throws Exception {
+        Mirror missing = serve(exchange -> respond(exchange, 404, new byte[0]));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> download(scheduler(missing)));
+        assertTrue(e.getCause() instanceof FileNotFoundException, "was " + e.getCause());
+    }
+
+    @Test
+    void brokenResponseIsResumedWithARange() throws Exception {
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        HttpHandler file = file(ranges);
+        boolean[] broken = {false};
+        Mirror mirror = serve(exchange -> {
+            if (broken[0]) {
+                file.handle(exchange);
+                return;
+            }
+            broken[0] = true;
+            ranges.add(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+            // promises the whole file and hangs up half way through
+            exchange.sendResponseHeaders(200, BODY.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(BODY, 0, BODY.length / 2);
+            body.flush();
+            exchange.close();
+        });
+        download(scheduler(mirror));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(2, ranges.size());
+        assertEquals("null", ranges.get(0));
+        assertTrue(ranges.get(1).matches("bytes=[1-9]\\d*-"), "resumed with " + ranges.get(1));
+    }
+
+    @Test
+    void wrongSizeStartsOver() throws Exception {
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        HttpHandler file = file(ranges);
+        boolean[] shortened = {false};
+        Mirror mirror = serve(exchange -> {
+            if (shortened[0]) {
+                file.handle(exchange);
+                return;
+            }
+            shortened[0] = true;
+            ranges.add(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+            // a complete response, of a file other than the one listed
+            respond(exchange, 200, Arrays.copyOf(BODY, BODY.length / 2));
+        });
+        download(scheduler(mirror));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(List.of("null", "null"), ranges, "the short part is not resumed");
+    }
+
+    @Test
+    void partLeftByAnEarlierRunIsResumed() throws Exception {
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        Mirror mirror = serve(file(ranges));
+        Files.createDirectories(downloads());
+        Files.write(downloads().resolve(NAME + ".part"), Arrays.copyOf(BODY, 50_000));
+        download(scheduler(mirror));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(List.of("bytes=50000-"), ranges);
+    }
+
+    @Test
+    void serverIgnoringTheRangeIsSkippedAhead() throws Exception {
+        List<String> ranges = new CopyOnWriteArrayList<>();
+        Mirror mirror = serve(exchange -> {
+            ranges.add(exchange.getRequestHeaders().getFirst("Range"));
+            respond(exchange, 200, BODY);
+        });
+        Files.createDirectories(downloads());
+        Files.write(downloads().resolve(NAME + ".part"), Arrays.copyOf(BODY, 50_000));
+        download(scheduler(mirror));
+        assertArrayEquals(BODY, storedBytes());
+        assertEquals(List.of("bytes=50000-"), ranges);
+    }
+
+    @Test
+    void fastestMirrorIsPreferred() throws Exception {
+        List<String> slowRequests = new CopyOnWriteArrayList<>();
+        List<String> fastRequests = new CopyOnWriteArrayList<>();
+        Mirror slow = serve(file(slowRequests));
+        Mirror fast = serve(file(fastRequests));
+        slow.succeeded(1_000, TimeUnit.SECONDS.toNanos(1));
+        fast.succeeded(1_000_000, TimeUnit.SECONDS.toNanos(1));
+        download(scheduler(slow, fast));
+        assertEquals(0, slowRequests.size());
+        assertEquals(1, fastRequests.size());
+    }
+
+    @Test
+    void unmeasuredMirrorIsTriedBeforeMeasuredOnes() throws Exception {
+        List<String> measuredRequests = new CopyOnWriteArrayList<>();
+        List<String> newRequests = new CopyOnWriteArrayList<>();
+        Mirror measured = serve(file(measuredRequests));
+        Mirror unmeasured = serve(file(newRequests));
+        measured.succeeded(1_000_000, TimeUnit.SECONDS.toNanos(1));
+        download(scheduler(measured, unmeasured));
+        assertEquals(0, measuredRequests.size());
+        assertEquals(1, newRequests.size());
+    }
+
+    @Test
+    void prioritizedFileIsDownloadedNext() throws Exception {
+        Path directory = mirrorDirectory("a", "b", "c", "d", "e", "f");
+        List<Runnable> tasks = new ArrayList<>();
+        DownloadScheduler scheduler = new DownloadScheduler(List.of(Mirror.of(directory.toString())), downloads(), 0,
+            this::store, name -> DownloadScheduler.BACKGROUND, tasks::add);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (String name : List.of("a", "b", "c", "d", "e", "f")) {
+            futures.add(scheduler.submit(new OnlineTrack(name + ".ogg", 10), null));
+        }
+        assertEquals(2, scheduler.getPending());
+        assertTrue(scheduler.prioritize("f.ogg"));
+        assertFalse(scheduler.prioritize("a.ogg"), "a.ogg is already downloading");
+        assertFalse(scheduler.prioritize("g.ogg"), "g.ogg was never asked for");
+        runAll(tasks);
+        assertEquals(List.of("a.ogg", "b.ogg", "c.ogg", "d.ogg", "f.ogg", "e.ogg"), stored);
+        futures.forEach(future -> assertTrue(future.isDone() && !future.isCompletedExceptionally()));
+    }
+
+    @Test
+    void waitingFilesFollowTheirQueuePosition() throws Exception {
+        Path directory = mirrorDirectory("a", "b", "c", "d", "e", "f", "g");
+        List<Runnable> tasks = new ArrayList<>();
+        Map<String, Integer> queue = Map.of("g", 0, "e", 1);
+        ToIntFunction<String> priority = id -> queue.getOrDefault(id, DownloadScheduler.BACKGROUND);
+        DownloadScheduler scheduler = new DownloadScheduler(List.of(Mirror.of(directory.toString())), downloads(), 0,
+            this::store, priority, tasks::add);
+        for (String name : List.of("a", "b", "c", "d", "e", "f", "g")) {
+            scheduler.submit(new OnlineTrack(name + ".ogg", 10), null);
+        }
+        runAll(tasks);
+        assertEquals(List.of("a.ogg", "b.ogg", "c.ogg", "d.ogg", "g.ogg", "e.ogg", "f.ogg"), stored);
+    }
+
+    @Test
+    void fileOnItsWayIsNotDownloadedTwice() throws Exception {
+        Path directory = mirrorDirectory("a");
+        List<Runnable> tasks = new ArrayList<>();
+        DownloadScheduler scheduler = new DownloadScheduler(List.of(Mirror.of(directory.toString())), downloads(), 0,
+            this::store, name -> DownloadScheduler.BACKGROUND, tasks::add);
+        CompletableFuture<Void> first = scheduler.submit(new OnlineTrack("a.ogg", 10), null);
+        CompletableFuture<Void> second = scheduler.submit(new OnlineTrack("a.ogg", 10), null);
+        assertSame(first, second);
+        assertEquals(1, tasks.size());
+    }
+
+    @Test
+    void listenerOfTheSecondCallerHearsTheSharedDownload() throws Exception {
+        Path directory = mirrorDirectory("a");
+        List<Runnable> tasks = new ArrayList<>();
+        DownloadScheduler scheduler = new DownloadScheduler(List.of(Mirror.of(directory.toString())), downloads(), 0,
+            this::store, name -> DownloadScheduler.BACKGROUND, tasks::add);
+        OnlineTrack track = new OnlineTrack("a.ogg", 10);
+        scheduler.stream(track);
+        List<Long> totals = new CopyOnWriteArrayList<>();
+        long[] bytes = {0};
+        CompletableFuture<Void> future = scheduler.submit(track, (t, change, total) -> {
+            bytes[0] += change;
+            totals.add(total);
+        });
+        runAll(tasks);
+        assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        assertEquals(10, bytes[0]);
+        assertEquals(10, (long) totals.get(totals.size() - 1));
+    }
+
+    @Test
+    void listenerJoiningHalfWayIsToldWhatItMissed() throws Exception {
+        CompletableFuture<Void> halfSent = new CompletableFuture<>();
+        CompletableFuture<Void> resume = new CompletableFuture<>();
+        Mirror mirror = serve(exchange -> {
+            exchange.sendResponseHeaders(200, BODY.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(BODY, 0, BODY.length / 2);
+                body.flush();
+                halfSent.complete(null);
+                resume.join();
+                body.write(BODY, BODY.length / 2, BODY.length - BODY.length / 2);
+            }
+        });
+        DownloadScheduler scheduler = scheduler(mirror);
+        OnlineTrack track = new OnlineTrack(NAME, BODY.length);
+        AtomicLong first = new AtomicLong();
+        AtomicLong second = new AtomicLong();
+        CompletableFuture<Void> future = scheduler.submit(track, (t, change, total) -> first.addAndGet(change));
+        try {
+            halfSent.get(30, TimeUnit.SECONDS);
+            while (first.get() == 0) {
+                Thread.sleep(1);
+            }
+            assertSame(future, scheduler.submit(track, (t, change, total) -> second.addAndGet(change)));
+            assertTrue(second.get() > 0, "the bytes so far are reported right away");
+        } finally {
+            resume.complete(null);
+        }
+        future.get(30, TimeUnit.SECONDS);
+        assertEquals(BODY.length, first.get());
+        assertEquals(BODY.length, second.get());
+    }
+
+    private DownloadScheduler scheduler(Mirror... mirrors) {
+        return new DownloadScheduler(List.of(mirrors), downloads(), 0, this::store, name -> DownloadScheduler.BACKGROUND, executor);
+    }
+
+    private void download(DownloadScheduler scheduler) throws Exception {
+        scheduler.submit(new OnlineTrack(NAME, BODY.length), null).get(30, TimeUnit.SECONDS);
+    }
+
+    private TrackSource store(String filename, Path downloaded) throws IOException {
+        Path target = temp.resolve("stored").resolve(filename);
+        Files.createDirectories(target.getParent());
+        Files.move(downloaded, target);
+        stored.add(filename);
+        return TrackSource.of(target.toFile());
+    }
+
+    private byte[] storedBytes() throws IOException {
+        return Files.readAllBytes(temp.resolve("stored").resolve(NAME));
+    }
+
+    private Path downloads() {
+        return temp.resolve("downloads");
+    }
+
+    private Path mirrorDirectory(String... ids) throws IOException {
+        Path directory = Files.createDirectories(temp.resolve("mirror"));
+        for (String id : ids) {
+            Files.write(directory.resolve(id + ".ogg"), Arrays.copyOf(BODY, 10));
+        }
+        return directory;
+    }
+
+    // runs the downloads one after another in the order they were started
+    private static void runAll(List<Runnable> tasks) {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private Mirror serve(HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", handler);
+        server.start();
+        servers.add(server);
+        return Mirror.of("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    // serves BODY, honouring a range from an offset on, and notes the range asked for
+    private static HttpHandler file(List<String> ranges) {
+        return exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(String.valueOf(range));
+            if (range == null) {
+                respond(exchange, 200, BODY);
+                return;
+            }
+            int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + offset + "-" + (BODY.length - 1) + "/" + BODY.length);
+            respond(exchange, 206, Arrays.copyOfRange(BODY, offset, BODY.length));
+        };
+    }
+
+    private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+}
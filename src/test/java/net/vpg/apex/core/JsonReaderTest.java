@@ -0,0 +1,104 @@
+package net.vpg.apex.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonReaderTest {
+    private static JsonReader of(String json) {
+        return new JsonReader(new StringReader(json));
+    }
+
+    @Test
+    void readsNestedDocument() throws IOException {
+        JsonReader reader = of("{\"name\": \"a\", \"size\": 12, \"on\": true, \"gone\": null, \"list\": [1, -2]}");
+        reader.beginObject();
+        assertEquals("name", reader.nextName());
+        assertEquals("a", reader.nextString());
+        assertEquals("size", reader.nextName());
+        assertEquals(12, reader.nextLong());
+        assertEquals("on", reader.nextName());
+        assertTrue(reader.nextBoolean());
+        assertEquals("gone", reader.nextName());
+        assertEquals(JsonReader.Token.NULL, reader.peek());
+        reader.nextNull();
+        assertEquals("list", reader.nextName());
+        reader.beginArray();
+        assertEquals(1, reader.nextLong());
+        assertEquals(-2, reader.nextLong());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+        reader.endObject();
+        assertEquals(JsonReader.Token.END, reader.peek());
+    }
+
+    @Test
+    void unescapesStrings() throws IOException {
+        JsonReader reader = of("[\"line\\nbreak\", \"say \\\"hi\\\"\", \"back\\\\slash\\/\", \"\\u00e9\\u20AC\\t\"]");
+        reader.beginArray();
+        assertEquals("line\nbreak", reader.nextString());
+        assertEquals("say \"hi\"", reader.nextString());
+        assertEquals("back\\slash/", reader.nextString());
+        assertEquals("\u00e9\u20ac\t", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    void skipsNestedValues() throws IOException {
+        JsonReader reader = of("[{\"a\": [1, {\"b\": \"]}\"}], \"c\": {}}, false, null, 3.5, \"s\", \"kept\"]");
+        reader.beginArray();
+        for (int i = 0; i < 5; i++) {
+            reader.skipValue();
+        }
+        assertEquals("kept", reader.nextString());
+        reader.endArray();
+    }
+
+    @Test
+    void readsWholeNumberFromDoubleLiteral() throws IOException {
+        JsonReader reader = of("[1.5e3, 42.0]");
+        reader.beginArray();
+        assertEquals(1500, reader.nextLong());
+        assertEquals(42, reader.nextLong());
+        reader.endArray();
+    }
+
+    @Test
+    void rejectsTruncatedDocument() {
+        assertThrows(IOException.class, () -> {
+            JsonReader reader = of("[{\"name\": \"unfinish");
+            reader.beginArray();
+            reader.beginObject();
+            reader.nextName();
+            reader.nextString();
+        });
+        assertThrows(IOException.class, () -> {
+            JsonReader reader = of("[{\"name\": [1, 2");
+            reader.beginArray();
+            reader.skipValue();
+        });
+        assertThrows(IOException.class, () -> of("[\"a\\u00").skipValue());
+    }
+
+    @Test
+    void rejectsUnexpectedCharacters() {
+        assertThrows(IOException.class, () -> of("[@]").skipValue());
+        assertThrows(IOException.class, () -> of("[\"\\u00zz\"]").skipValue());
+        assertThrows(IOException.class, () -> of("[tru]").skipValue());
+        assertThrows(IOException.class, () -> of("[nope]").skipValue());
+        assertThrows(IOException.class, () -> {
+            JsonReader reader = of("[12abc]");
+            reader.beginArray();
+            reader.nextLong();
+        });
+    }
+
+    @Test
+    void rejectsMismatchedEnds() {
+        assertThrows(IOException.class, () -> of("{\"a\": 1]").skipValue());
+        assertThrows(IOException.class, () -> of("}").endObject());
+    }
+}
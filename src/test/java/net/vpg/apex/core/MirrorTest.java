@@ -0,0 +1,62 @@
+package net.vpg.apex.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MirrorTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void backOffDoublesWithEveryFailure() {
+        Mirror mirror = Mirror.of(temp.toString());
+        long second = TimeUnit.SECONDS.toNanos(1);
+        for (int failures = 1; failures <= 4; failures++) {
+            mirror.failed();
+            long backoff = mirror.getRetryAt() - System.nanoTime();
+            long full = second << (failures - 1);
+            // jittered into the upper half of the full back off
+            assertTrue(backoff > full / 2 - second / 10 && backoff <= full, failures + " failures backed off " + backoff);
+        }
+        assertEquals(4, mirror.getFailures());
+    }
+
+    @Test
+    void backOffIsCapped() {
+        Mirror mirror = Mirror.of(temp.toString());
+        for (int i = 0; i < 40; i++) {
+            mirror.failed();
+        }
+        assertTrue(mirror.getRetryAt() - System.nanoTime() <= TimeUnit.MINUTES.toNanos(2));
+    }
+
+    @Test
+    void successResetsFailuresAndAveragesThroughput() {
+        Mirror mirror = Mirror.of(temp.toString());
+        assertTrue(Double.isNaN(mirror.getThroughput()));
+        mirror.failed();
+        mirror.succeeded(1000, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(0, mirror.getFailures());
+        assertEquals(1000.0, mirror.getThroughput());
+        mirror.succeeded(2000, TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1300.0, mirror.getThroughput(), "a moving average, not the last sample");
+    }
+
+    @Test
+    void directoryMirrorOpensFromTheOffset() throws IOException {
+        Files.write(temp.resolve("a b.ogg"), new byte[]{1, 2, 3, 4, 5});
+        try (InputStream input = Mirror.of(temp.toUri().toString()).open("a b.ogg", 2)) {
+            assertArrayEquals(new byte[]{3, 4, 5}, input.readAllBytes());
+        }
+        assertThrows(FileNotFoundException.class, () -> Mirror.of(temp.toString()).open("missing.ogg", 0));
+    }
+}
@@ -0,0 +1,95 @@
+package net.vpg.apex.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlayQueueTest {
+    @TempDir
+    Path dir;
+
+    private PlayQueue load() {
+        PlayQueue queue = new PlayQueue(dir.resolve("queue.log"));
+        queue.load();
+        return queue;
+    }
+
+    private static String drain(PlayQueue queue) {
+        StringBuilder ids = new StringBuilder();
+        for (String id = queue.poll(); id != null; id = queue.poll()) {
+            ids.append(id).append(' ');
+        }
+        return ids.toString().trim();
+    }
+
+    @Test
+    void logIsReplayedOnLoad() {
+        PlayQueue queue = load();
+        queue.add("b");
+        queue.add("c");
+        queue.addFirst("a");
+        queue.add("d");
+        assertEquals("a", queue.poll());
+        queue.remember("x");
+        queue.remember("y");
+        queue.remember("z");
+        assertEquals("z", queue.back());
+        queue.clear();
+        queue.add("e");
+        queue.add("f");
+
+        PlayQueue loaded = load();
+        assertEquals(Arrays.asList("x", "y"), loaded.getHistory());
+        assertEquals(1, loaded.indexOf("f"));
+        assertEquals("e f", drain(loaded));
+    }
+
+    @Test
+    void truncatedLastRecordIsDropped() throws IOException {
+        Path file = dir.resolve("queue.log");
+        Files.write(file, "+a\n+b\nhx\n+unfinish".getBytes(StandardCharsets.UTF_8));
+        PlayQueue queue = load();
+        assertEquals(List.of("x"), queue.getHistory());
+        assertEquals("a b", drain(queue));
+    }
+
+    @Test
+    void recordCutInsideACharacterKeepsTheRest() throws IOException {
+        Path file = dir.resolve("queue.log");
+        byte[] name = "+été".getBytes(StandardCharsets.UTF_8);
+        Files.write(file, "+a\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(file, Arrays.copyOf(name, 2), APPEND);
+        assertEquals("a", drain(load()));
+    }
+
+    @Test
+    void compactionKeepsTheState() throws IOException {
+        PlayQueue queue = load();
+        for (int i = 0; i < 500; i++) {
+            queue.add("t" + i);
+            queue.remember("t" + i);
+            queue.poll();
+        }
+        queue.add("last");
+        queue.add("été");
+        // compaction keeps the log close to the state, the 500 cycles alone would be 1500 lines
+        assertTrue(Files.readAllLines(dir.resolve("queue.log")).size() < 4 * (2 + PlayQueue.HISTORY_SIZE) + 64);
+
+        PlayQueue loaded = load();
+        List<String> history = loaded.getHistory();
+        assertEquals(PlayQueue.HISTORY_SIZE, history.size());
+        assertEquals("t400", history.get(0));
+        assertEquals("t499", history.get(history.size() - 1));
+        assertEquals("last été", drain(loaded));
+        assertFalse(Files.exists(dir.resolve("queue.log.tmp")));
+    }
+}
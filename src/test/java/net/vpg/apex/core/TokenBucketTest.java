@@ -0,0 +1,26 @@
+package net.vpg.apex.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    @Test
+    void noLimitNeverWaits() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.acquire(1 << 20));
+        }
+    }
+
+    @Test
+    void burstIsFreeAndDebtIsPaidAtTheRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100_000);
+        // a quarter of a second is saved up from the start
+        assertEquals(0, bucket.acquire(25_000));
+        long waited = bucket.acquire(50_000);
+        assertTrue(waited > TimeUnit.MILLISECONDS.toNanos(400) && waited <= TimeUnit.MILLISECONDS.toNanos(500), "waited " + waited);
+    }
+}